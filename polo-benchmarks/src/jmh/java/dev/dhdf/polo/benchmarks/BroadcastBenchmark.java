@@ -0,0 +1,142 @@
+package dev.dhdf.polo.benchmarks;
+
+import dev.dhdf.polo.bukkit.ChatBroadcaster;
+import dev.dhdf.polo.bukkit.ClientCapabilities;
+import dev.dhdf.polo.types.IntermediateJSON;
+import dev.dhdf.polo.types.RenderedMessage;
+import net.md_5.bungee.api.chat.BaseComponent;
+import org.bukkit.entity.Player;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+
+/**
+ * Sending a Matrix message with ChatBroadcaster to every online player, two
+ * of them mentioned, the way Spigot does: splitting the players, converting
+ * each variant to BungeeCord components and sending them to each player.
+ *
+ * broadcast sends a message for the first time, so the variants are
+ * converted; again sends it a second time, when they are kept with the
+ * message. Players are stand-ins whose Player.Spigot consumes what it is
+ * sent, so the cost of calling them is included but small.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+    @Param({"500"})
+    public int players;
+
+    private ChatBroadcaster broadcaster;
+    private List<Player> online;
+    private IntermediateJSON intermediate;
+    private RenderedMessage message;
+    private RenderedMessage sent;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        Logger logger = Logger.getLogger("BroadcastBenchmark");
+        // Without Floodgate or ViaVersion every player gets the full
+        // message, and with Spigot available adventure is never used
+        broadcaster = new ChatBroadcaster(null, new ClientCapabilities(logger), logger);
+
+        Player.Spigot spigot = new Player.Spigot() {
+            @Override
+            public void sendMessage(BaseComponent... components) {
+                blackhole.consume(components);
+            }
+        };
+        online = new ArrayList<>(players);
+        for (int i = 0; i < players; ++i)
+            online.add(player("Player" + i, UUID.randomUUID(), spigot, blackhole));
+
+        JSONArray json = new JSONArray()
+                .put("<alice> ")
+                .put(mention(online.get(1)))
+                .put(" ")
+                .put(mention(online.get(players / 2)))
+                .put(" ")
+                .put(new JSONObject().put("type", "style").put("bold", true).put("color", 0xff5555)
+                        .put("content", "Build #1234 passed"))
+                .put(" in ")
+                .put(new JSONObject().put("type", "link").put("href", "https://ci.example.org/1234")
+                        .put("content", "3m 12s"));
+        intermediate = new IntermediateJSON(json);
+        sent = new RenderedMessage(intermediate);
+        broadcaster.broadcast(sent, online);
+    }
+
+    /**
+     * A message that hasn't been sent yet, rendered outside the timing.
+     */
+    @Setup(Level.Invocation)
+    public void render() {
+        message = new RenderedMessage(intermediate);
+    }
+
+    @Benchmark
+    public void broadcast() {
+        broadcaster.broadcast(message, online);
+    }
+
+    @Benchmark
+    public void again() {
+        broadcaster.broadcast(sent, online);
+    }
+
+    private static Player player(String name, UUID uuid, Player.Spigot spigot, Blackhole blackhole) {
+        return (Player) Proxy.newProxyInstance(Player.class.getClassLoader(), new Class<?>[] {Player.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                    case "spigot":
+                        return spigot;
+                    case "getUniqueId":
+                        return uuid;
+                    case "getName":
+                        return name;
+                    case "isOnline":
+                        return true;
+                    case "sendMessage":
+                        blackhole.consume(args);
+                        return null;
+                    case "hashCode":
+                        return uuid.hashCode();
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private static JSONObject mention(Player player) {
+        return new JSONObject().put("type", "mention").put("bridge", "minecraft")
+                .put("player", new JSONObject().put("uuid", player.getUniqueId().toString().replace("-", "")))
+                .put("user", new JSONObject().put("displayName", player.getName())
+                        .put("mxid", "@_mc_" + player.getName() + ":example.org"))
+                .put("content", player.getName());
+    }
+}
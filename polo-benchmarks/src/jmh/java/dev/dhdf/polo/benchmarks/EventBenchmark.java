@@ -0,0 +1,137 @@
+package dev.dhdf.polo.benchmarks;
+
+import dev.dhdf.polo.types.MCDeath;
+import dev.dhdf.polo.types.MCEvent;
+import dev.dhdf.polo.types.MCJoin;
+import dev.dhdf.polo.types.MCKick;
+import dev.dhdf.polo.types.MCMessage;
+import dev.dhdf.polo.types.MCQuit;
+import dev.dhdf.polo.types.MatrixMessage;
+import dev.dhdf.polo.types.MatrixModeration;
+import dev.dhdf.polo.types.PoloPlayer;
+import dev.dhdf.polo.webclient.EventRegistry;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * The per event work outside rendering: writing each type of Minecraft
+ * event as JSON (MCEvent.toString()), reading the UUIDs Marco sends back,
+ * and decoding and dispatching each type of Matrix event as WebClient does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventBenchmark {
+    private static final String UUID_STRING = "0f3c9e4a-5b6d-4e7f-8a9b-0c1d2e3f4a5b";
+
+    // Fields rather than constants, so they can't be folded into the code
+    private String dashed = UUID_STRING;
+    private String undashed = UUID_STRING.replace("-", "");
+
+    /**
+     * A Minecraft event of each type.
+     */
+    @State(Scope.Thread)
+    public static class Outbound {
+        @Param({"chat", "join", "quit", "kick", "death"})
+        public String type;
+
+        MCEvent event;
+
+        @Setup
+        public void setup() {
+            // A skin texture is a few hundred bytes of base64
+            StringBuilder texture = new StringBuilder();
+            while (texture.length() < 400)
+                texture.append("ewogICJ0aW1lc3RhbXAiIDogMTYwMDAwMDAwMDAwMCwKICAicHJvZmlsZUlkIiA6ICI");
+            PoloPlayer player = new PoloPlayer("Steve", UUID.fromString(UUID_STRING), "Steve", texture.toString());
+            switch (type) {
+            case "chat":
+                event = new MCMessage(player, "Has anyone seen my \"diamond\" pickaxe? </3 \u2764");
+                break;
+            case "join":
+                event = new MCJoin(player);
+                break;
+            case "quit":
+                event = new MCQuit(player);
+                break;
+            case "kick":
+                event = new MCKick(player, "Kicked for spamming");
+                break;
+            default:
+                event = new MCDeath(player, "Steve fell from a high place");
+                break;
+            }
+        }
+    }
+
+    /**
+     * A Matrix event of each type, and handlers that only consume them, so
+     * that decoding and dispatching is what is measured.
+     */
+    @State(Scope.Thread)
+    public static class Inbound {
+        @Param({"message.text", "message.emote", "message.announce", "player.kick", "player.ban", "player.unban"})
+        public String type;
+
+        EventRegistry registry;
+        JSONObject event;
+
+        @Setup
+        public void setup(Blackhole blackhole) {
+            registry = new EventRegistry();
+            for (MatrixMessage.Kind kind : MatrixMessage.Kind.values())
+                registry.register(kind.type, MatrixMessage::fromJSON, blackhole::consume);
+            for (MatrixModeration.Action action : MatrixModeration.Action.values())
+                registry.register(action.type, MatrixModeration::fromJSON, blackhole::consume);
+
+            JSONObject sender = new JSONObject().put("displayName", "alice").put("mxid", "@alice:example.org");
+            event = new JSONObject().put("type", type).put("sender", sender);
+            if (type.startsWith("message.")) {
+                event.put("body", "hello **world**")
+                        .put("bodyJson", new JSONObject("{\"type\": \"style\", \"bold\": true, \"content\": \"world\"}"));
+            } else {
+                event.put("player", new JSONObject().put("uuid", UUID_STRING.replace("-", "")))
+                        .put("reason", "griefing");
+            }
+        }
+    }
+
+    @Benchmark
+    public String eventToString(Outbound outbound) {
+        return outbound.event.toString();
+    }
+
+    @Benchmark
+    public UUID uuidFromString() {
+        return PoloPlayer.uuidFromString(undashed);
+    }
+
+    @Benchmark
+    public UUID uuidFromDashedString() {
+        return PoloPlayer.uuidFromString(dashed);
+    }
+
+    @Benchmark
+    public boolean dispatch(Inbound inbound) {
+        return inbound.registry.dispatch(inbound.event.getString("type"), inbound.event);
+    }
+}
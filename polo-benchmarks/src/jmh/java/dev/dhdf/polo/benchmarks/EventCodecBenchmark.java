@@ -0,0 +1,82 @@
+package dev.dhdf.polo.benchmarks;
+
+import dev.dhdf.polo.types.EventCodec;
+import dev.dhdf.polo.types.MCEvent;
+import dev.dhdf.polo.types.MCJoin;
+import dev.dhdf.polo.types.MCMessage;
+import dev.dhdf.polo.types.PoloPlayer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Serialising a chat message, as done for every chat line, and a batch of
+ * events: through a JSONObject tree as before, and with EventCodec.
+ *
+ * Run with ./gradlew :polo-benchmarks:jmh and compare gc.alloc.rate.norm,
+ * the bytes allocated per event.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventCodecBenchmark {
+    private MCMessage message;
+    private List<MCEvent> batch;
+
+    @Setup
+    public void setup() {
+        // A skin texture is a few hundred bytes of base64
+        StringBuilder texture = new StringBuilder();
+        while (texture.length() < 400)
+            texture.append("ewogICJ0aW1lc3RhbXAiIDogMTYwMDAwMDAwMDAwMCwKICAicHJvZmlsZUlkIiA6ICI");
+
+        PoloPlayer player = new PoloPlayer("Steve", UUID.randomUUID(), "\u00a7aSteve\u00a7r", texture.toString());
+        message = new MCMessage(player, "Has anyone seen my \"diamond\" pickaxe? </3 \u2764");
+
+        batch = new ArrayList<>();
+        for (int i = 0; i < 50; ++i)
+            batch.add(i % 10 == 0 ? new MCJoin(player) : new MCMessage(player, "message " + i));
+    }
+
+    @Benchmark
+    public byte[] jsonObject() {
+        return message.toJSON().toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] codec() {
+        return EventCodec.get().encode(message);
+    }
+
+    @Benchmark
+    public byte[] jsonObjectBatch() {
+        JSONArray entries = new JSONArray();
+        for (MCEvent event : batch)
+            entries.put(event.toJSON().put("type", event.getType()));
+        return new JSONObject().put("events", entries).toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] codecBatch() {
+        return EventCodec.get().encodeBatch(batch);
+    }
+}
@@ -0,0 +1,158 @@
+package dev.dhdf.polo.benchmarks;
+
+import dev.dhdf.polo.types.GlyphWidths;
+import dev.dhdf.polo.types.IntermediateJSON;
+import dev.dhdf.polo.types.RenderCache;
+import dev.dhdf.polo.types.RenderedMessage;
+import net.kyori.adventure.text.Component;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Rendering the intermediate JSON of Matrix messages, to components and to
+ * legacy text, for typical messages and for ones built to be expensive:
+ *  - chat: a line of chat with a mention, a link and some styling
+ *  - rich: headings, a quote, nested bullet lists and a rule, as pasted
+ *    from a long Matrix post
+ *  - deep: quotes and bullets nested hundreds of levels deep
+ *  - wide: thousands of styled fragments side by side
+ *
+ * Each operation renders from scratch, the way a cache miss does; cached
+ * compares a RenderCache hit, which costs hashing the JSON instead.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RenderBenchmark {
+    @Param({"chat", "rich", "deep", "wide"})
+    public String message;
+
+    private Object json;
+    private RenderCache cache;
+    private String indent;
+
+    @Setup
+    public void setup() {
+        switch (message) {
+        case "chat":
+            json = chat();
+            break;
+        case "rich":
+            json = rich();
+            break;
+        case "deep":
+            json = deep(300);
+            break;
+        default:
+            json = wide(2000);
+            break;
+        }
+
+        cache = new RenderCache(256, 256 * 1024);
+        cache.get(json);
+        // What a reply three levels into a quoted list is indented by
+        indent = "┃ ┃ • ◦ ";
+    }
+
+    @Benchmark
+    public Component component() {
+        return new IntermediateJSON(json).getComponent();
+    }
+
+    @Benchmark
+    public String legacy() {
+        return new IntermediateJSON(json).getLegacy();
+    }
+
+    @Benchmark
+    public RenderedMessage cached() {
+        return cache.get(json);
+    }
+
+    @Benchmark
+    public int indentWidth() {
+        return GlyphWidths.width(indent, false) + GlyphWidths.width(indent, true);
+    }
+
+    private static Object chat() {
+        return new JSONArray()
+                .put("<alice> ")
+                .put(mention("Steve"))
+                .put(" have you seen ")
+                .put(new JSONObject().put("type", "link").put("href", "https://example.org/builds/castle")
+                        .put("content", "the castle"))
+                .put("? it's ")
+                .put(new JSONObject().put("type", "style").put("bold", true).put("color", 0xff5555)
+                        .put("content", "huge"));
+    }
+
+    private static Object rich() {
+        JSONArray content = new JSONArray()
+                .put(new JSONObject().put("type", "style").put("heading", 1).put("content", "Server rules\n"))
+                .put(new JSONObject().put("type", "block").put("block", "quote")
+                        .put("content", "Be excellent to each other.\nAnd no griefing."))
+                .put("\n");
+        JSONArray list = new JSONArray();
+        for (int i = 0; i < 10; ++i) {
+            JSONArray item = new JSONArray()
+                    .put("Rule " + (i + 1) + ": ")
+                    .put(new JSONObject().put("type", "style").put("italic", true)
+                            .put("content", "keep the spawn area tidy and build at least 500 blocks away"));
+            if (i % 3 == 0) {
+                item.put(new JSONObject().put("type", "block").put("block", "bullet")
+                        .put("content", new JSONArray().put("see ")
+                                .put(new JSONObject().put("type", "link").put("href", "https://example.org/rules")
+                                        .put("content", "the wiki"))));
+            }
+            list.put(new JSONObject().put("type", "block").put("block", "bullet").put("n", i + 1).put("content", item));
+        }
+        content.put(list)
+                .put(new JSONObject().put("type", "horizontalRule"))
+                .put("Questions? Ask ")
+                .put(mention("Admin"));
+        return new JSONArray().put("<mod> ").put(content);
+    }
+
+    private static Object deep(int depth) {
+        Object json = "the bottom\nof the thread";
+        for (int i = 0; i < depth; ++i) {
+            json = new JSONObject().put("type", "block").put("block", i % 2 == 0 ? "quote" : "bullet")
+                    .put("content", new JSONArray().put("reply " + i + "\n").put(json));
+        }
+        return new JSONArray().put("<troll> ").put(json);
+    }
+
+    private static Object wide(int count) {
+        JSONArray json = new JSONArray().put("<spam> ");
+        for (int i = 0; i < count; ++i) {
+            json.put(new JSONObject().put("type", "style").put("color", i * 0x010203 & 0xffffff)
+                    .put("bold", i % 2 == 0).put("content", "x" + i + " "));
+        }
+        return json;
+    }
+
+    private static JSONObject mention(String name) {
+        return new JSONObject().put("type", "mention").put("bridge", "minecraft")
+                .put("player", new JSONObject().put("uuid", UUID.randomUUID().toString().replace("-", "")))
+                .put("user", new JSONObject().put("displayName", name).put("mxid", "@_mc_" + name + ":example.org"))
+                .put("content", name);
+    }
+}
@@ -0,0 +1,124 @@
+package dev.dhdf.polo.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Reading a player's texture the way BukkitHelper does, against stand-ins
+ * for CraftPlayer, GameProfile and Property since the server classes aren't
+ * available here: three Method.invoke calls as before, the MethodHandles it
+ * now resolves once, and plain calls as the floor.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TextureLookupBenchmark {
+    private static final MethodType GETTER = MethodType.methodType(Object.class, Object.class);
+
+    private CraftPlayer player;
+    private Method getProfile;
+    private Method getProperties;
+    private Method getValue;
+    private MethodHandle getProfileHandle;
+    private MethodHandle getPropertiesHandle;
+    private MethodHandle getValueHandle;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        player = new CraftPlayer(new GameProfile(new Property("ewogICJ0aW1lc3RhbXAiIDogMTYwMDAwMDAwMDAwMA")));
+
+        getProfile = CraftPlayer.class.getMethod("getProfile");
+        getProperties = GameProfile.class.getMethod("getProperties");
+        getValue = Property.class.getMethod("getValue");
+
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        getProfileHandle = lookup.unreflect(getProfile).asType(GETTER);
+        getPropertiesHandle = lookup.unreflect(getProperties).asType(GETTER);
+        getValueHandle = lookup.unreflect(getValue).asType(GETTER);
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public String reflection() throws ReflectiveOperationException {
+        Object profile = getProfile.invoke(player);
+        Map<String, Collection<Object>> properties = (Map<String, Collection<Object>>) getProperties.invoke(profile);
+        for (Object property : properties.get("textures"))
+            return (String) getValue.invoke(property);
+        return null;
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public String methodHandles() throws Throwable {
+        Object profile = (Object) getProfileHandle.invokeExact((Object) player);
+        Map<String, Collection<Object>> properties = (Map<String, Collection<Object>>) (Object) getPropertiesHandle.invokeExact(profile);
+        for (Object property : properties.get("textures"))
+            return (String) (Object) getValueHandle.invokeExact(property);
+        return null;
+    }
+
+    @Benchmark
+    public String direct() {
+        for (Property property : player.getProfile().getProperties().get("textures"))
+            return property.getValue();
+        return null;
+    }
+
+    public static class CraftPlayer {
+        private final GameProfile profile;
+
+        public CraftPlayer(GameProfile profile) {
+            this.profile = profile;
+        }
+
+        public GameProfile getProfile() {
+            return profile;
+        }
+    }
+
+    public static class GameProfile {
+        private final Map<String, Collection<Property>> properties = new HashMap<>();
+
+        public GameProfile(Property texture) {
+            properties.put("textures", Collections.singletonList(texture));
+        }
+
+        public Map<String, Collection<Property>> getProperties() {
+            return properties;
+        }
+    }
+
+    public static class Property {
+        private final String value;
+
+        public Property(String value) {
+            this.value = value;
+        }
+
+        public String getValue() {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package dev.dhdf.polo.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+
+
+/**
+ * An in-process stand-in for Marco, the appservice end of the bridge, for
+ * driving WebClient and Sync without a homeserver.
+ *
+ * It answers /vibeCheck, takes events on /chat, /player/* and /batch, and
+ * hands out the Matrix events it is given on /events (long polled when asked
+ * to wait) and, as plain text, on the legacy GET /chat.
+ *
+ * Faults can be injected into any request, and changed while it runs: a
+ * delay before answering, error responses, connections dropped without an
+ * answer, and responses trickled out slowly. Requests that get an error or
+ * are dropped aren't acted on, as if Marco had fallen over before reading
+ * them.
+ */
+public class FakeMarco {
+    // Bytes written per pause of a slow response
+    private static final int SLOW_CHUNK = 16;
+
+    private final String token;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final LinkedBlockingQueue<JSONObject> roomEvents = new LinkedBlockingQueue<>();
+    private volatile Consumer<JSONObject> listener = event -> {};
+
+    // Faults
+    private volatile long latency;
+    private volatile double errorRate;
+    private volatile int errorCode = 500;
+    private volatile double dropRate;
+    private volatile double slowRate;
+    private volatile long slowDelay;
+
+    // Statistics
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong drops = new AtomicLong();
+    private final AtomicLong slowResponses = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param port  Port to listen on, or 0 for any free port
+     * @param token The token the plugin must authenticate with
+     * @throws IOException if the port couldn't be bound
+     */
+    public FakeMarco(int port, String token) throws IOException {
+        // Otherwise small responses wait on delayed ACKs, adding 40ms to
+        // every request. Only read when the first server is made.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        this.token = token;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 64);
+        // Long polls hold a thread each
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "Fake Marco");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Set what is done with each event the plugin sends, called from the
+     * server's threads.
+     * @param listener Takes the event, with its type
+     */
+    public void setListener(Consumer<JSONObject> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Queue an event from the Matrix room for the plugin to fetch.
+     * @param event The event, with its type
+     */
+    public void sendRoomEvent(JSONObject event) {
+        roomEvents.add(event);
+    }
+
+    /**
+     * Get the number of room events the plugin has yet to fetch.
+     * @return int Number of events
+     */
+    public int getPendingCount() {
+        return roomEvents.size();
+    }
+
+    /**
+     * Delay every response.
+     * @param millis How long to wait before answering (ms)
+     */
+    public void setLatency(long millis) {
+        this.latency = millis;
+    }
+
+    /**
+     * Answer a fraction of requests with an error.
+     * @param rate Fraction of requests, from 0 to 1
+     * @param code HTTP status code of the error
+     */
+    public void setErrors(double rate, int code) {
+        this.errorRate = rate;
+        this.errorCode = code;
+    }
+
+    /**
+     * Close the connection of a fraction of requests without answering.
+     * @param rate Fraction of requests, from 0 to 1
+     */
+    public void setDrops(double rate) {
+        this.dropRate = rate;
+    }
+
+    /**
+     * Trickle out a fraction of responses, a few bytes at a time.
+     * @param rate  Fraction of responses, from 0 to 1
+     * @param delay Pause between each few bytes (ms)
+     */
+    public void setSlowResponses(double rate, long delay) {
+        this.slowRate = rate;
+        this.slowDelay = delay;
+    }
+
+    /**
+     * Describe the requests served and the faults injected.
+     * @return String Summary of statistics
+     */
+    public String getStats() {
+        return String.format("%d requests, %d errors, %d dropped, %d slow",
+                requests.get(), errors.get(), drops.get(), slowResponses.get());
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        try {
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath();
+            if (!("Bearer " + token).equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+                sendError(exchange, 401, "M_UNKNOWN_TOKEN", "Invalid token");
+                return;
+            }
+
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (dropRate > 0 && random.nextDouble() < dropRate) {
+                drops.incrementAndGet();
+                // Closing the exchange without a response closes the
+                // connection
+                return;
+            }
+            if (latency > 0)
+                Thread.sleep(latency);
+            if (errorRate > 0 && random.nextDouble() < errorRate) {
+                errors.incrementAndGet();
+                sendError(exchange, errorCode, "M_UNKNOWN", "Injected fault");
+                return;
+            }
+
+            if (path.equals("/vibeCheck")) {
+                send(exchange, 200, new JSONObject().put("status", "OK"));
+            } else if (path.equals("/events") && method.equals("GET")) {
+                sendEvents(exchange);
+            } else if (path.equals("/chat") && method.equals("GET")) {
+                sendChat(exchange);
+            } else if (method.equals("POST") && path.equals("/batch")) {
+                JSONArray events = readBody(exchange).getJSONArray("events");
+                for (int i = 0; i < events.length(); ++i)
+                    listener.accept(events.getJSONObject(i));
+                send(exchange, 200, new JSONObject());
+            } else if (method.equals("POST") && path.equals("/chat")) {
+                listener.accept(readBody(exchange).put("type", "chat"));
+                send(exchange, 200, new JSONObject());
+            } else if (method.equals("POST") && path.startsWith("/player/")) {
+                listener.accept(readBody(exchange).put("type", "player." + path.substring(8)));
+                send(exchange, 200, new JSONObject());
+            } else {
+                sendError(exchange, 404, "M_NOT_FOUND", "No such endpoint " + path);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            sendError(exchange, 400, "M_BAD_JSON", e.toString());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Answer a request for events, holding it open for up to the wait
+     * given until there are some.
+     */
+    private void sendEvents(HttpExchange exchange) throws IOException, InterruptedException {
+        long wait = 0;
+        String query = exchange.getRequestURI().getQuery();
+        if (query != null && query.startsWith("wait="))
+            wait = Long.parseLong(query.substring(5));
+
+        List<JSONObject> events = new ArrayList<>();
+        JSONObject first = wait > 0 ? roomEvents.poll(wait, TimeUnit.MILLISECONDS) : roomEvents.poll();
+        if (first != null) {
+            events.add(first);
+            roomEvents.drainTo(events);
+        }
+        if (wait > 0)
+            exchange.getResponseHeaders().add("x-long-poll", "true");
+        send(exchange, 200, new JSONObject().put("events", new JSONArray(events)));
+    }
+
+    /**
+     * Answer the legacy request for chat, with the bodies of messages as
+     * plain text.
+     */
+    private void sendChat(HttpExchange exchange) throws IOException {
+        List<JSONObject> events = new ArrayList<>();
+        roomEvents.drainTo(events);
+        JSONArray chat = new JSONArray();
+        for (JSONObject event : events) {
+            if (event.getString("type").startsWith("message."))
+                chat.put("<" + event.getJSONObject("sender").getString("displayName") + "> "
+                        + event.getString("body"));
+        }
+        send(exchange, 200, new JSONObject().put("chat", chat));
+    }
+
+    private static JSONObject readBody(HttpExchange exchange) throws IOException {
+        InputStream body = exchange.getRequestBody();
+        if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding")))
+            body = new GZIPInputStream(body);
+        return new JSONObject(new JSONTokener(new InputStreamReader(body, StandardCharsets.UTF_8)));
+    }
+
+    private void sendError(HttpExchange exchange, int code, String error, String message) throws IOException {
+        send(exchange, code, new JSONObject().put("error", error).put("message", message));
+    }
+
+    private void send(HttpExchange exchange, int code, JSONObject body) throws IOException {
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+
+        if (slowRate > 0 && ThreadLocalRandom.current().nextDouble() < slowRate) {
+            slowResponses.incrementAndGet();
+            // Chunked, so that the body can be written a bit at a time
+            exchange.sendResponseHeaders(code, 0);
+            OutputStream out = exchange.getResponseBody();
+            for (int i = 0; i < bytes.length; i += SLOW_CHUNK) {
+                out.write(bytes, i, Math.min(SLOW_CHUNK, bytes.length - i));
+                out.flush();
+                try {
+                    Thread.sleep(slowDelay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            return;
+        }
+
+        exchange.sendResponseHeaders(code, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+}
@@ -0,0 +1,312 @@
+package dev.dhdf.polo.loadtest;
+
+import dev.dhdf.polo.PoloPlugin;
+import dev.dhdf.polo.metrics.LatencyHistogram;
+import dev.dhdf.polo.metrics.Metrics;
+import dev.dhdf.polo.types.PoloPlayer;
+import dev.dhdf.polo.types.RenderCache;
+import dev.dhdf.polo.util.Sync;
+import dev.dhdf.polo.webclient.Config;
+import dev.dhdf.polo.webclient.WebClient;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * Drives WebClient and Sync end to end against a FakeMarco: a number of
+ * players chat at a given rate, while the Matrix room sends rich messages
+ * at another, with whatever faults are asked for. At the end it reports
+ * the throughput, latency percentiles and lost events in each direction,
+ * and exits with status 1 if more events were lost than allowed.
+ *
+ * Every message carries a sequence number, so each can be matched up when
+ * it arrives at the other end. Options are given as --name=value:
+ *  --players=50         Number of players chatting
+ *  --chat-rate=6        Messages each player sends a minute
+ *  --room-rate=5        Messages the Matrix room sends a second
+ *  --duration=30        How long to send messages for (s)
+ *  --drain=10           Longest to wait for the last messages to arrive (s)
+ *  --transport=http     http or websocket
+ *  --batch-size=50      As in config.yml
+ *  --latency=0          Delay before Marco answers (ms)
+ *  --error-rate=0       Fraction of requests answered with an error
+ *  --error-code=500     The error
+ *  --drop-rate=0        Fraction of connections dropped without an answer
+ *  --slow-rate=0        Fraction of responses trickled out slowly
+ *  --slow-delay=100     Pause between each few bytes of those (ms)
+ *  --allowed-loss=0     Lost events in either direction before failing
+ */
+public class LoadTest {
+    private static final Pattern SEQUENCE = Pattern.compile("#(\\d+)");
+
+    private final Map<String, String> options;
+    private final FakeMarco marco;
+    private final ScheduledExecutorService scheduler;
+    private final Random random = new Random(42);
+
+    // Outbound: players to Marco
+    private final ConcurrentHashMap<Long, Long> chatSent = new ConcurrentHashMap<>();
+    private final AtomicLong chatSequence = new AtomicLong();
+    private final AtomicLong chatReceived = new AtomicLong();
+    private final AtomicLong chatDuplicates = new AtomicLong();
+    private final LatencyHistogram chatLatency = new LatencyHistogram();
+
+    // Inbound: the Matrix room to players
+    private final ConcurrentHashMap<Long, Long> roomSent = new ConcurrentHashMap<>();
+    private final AtomicLong roomSequence = new AtomicLong();
+    private final AtomicLong roomReceived = new AtomicLong();
+    private final AtomicLong roomDuplicates = new AtomicLong();
+    private final LatencyHistogram roomLatency = new LatencyHistogram();
+
+    public LoadTest(Map<String, String> options) throws IOException {
+        this.options = options;
+        this.marco = new FakeMarco(0, "loadtest");
+        this.scheduler = Executors.newScheduledThreadPool(4, runnable -> {
+            Thread thread = new Thread(runnable, "Load test");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0)
+                throw new IllegalArgumentException("Expected --name=value, not " + arg);
+            options.put(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+        System.exit(new LoadTest(options).run() ? 0 : 1);
+    }
+
+    private int getInt(String name, int def) {
+        return options.containsKey(name) ? Integer.parseInt(options.get(name)) : def;
+    }
+
+    private double getDouble(String name, double def) {
+        return options.containsKey(name) ? Double.parseDouble(options.get(name)) : def;
+    }
+
+    /**
+     * Run the load test.
+     * @return boolean Whether no more events were lost than allowed
+     */
+    public boolean run() throws Exception {
+        int players = getInt("players", 50);
+        double chatRate = players * getDouble("chat-rate", 6) / 60;
+        double roomRate = getDouble("room-rate", 5);
+        int duration = getInt("duration", 30);
+
+        marco.setLatency(getInt("latency", 0));
+        marco.setErrors(getDouble("error-rate", 0), getInt("error-code", 500));
+        marco.setDrops(getDouble("drop-rate", 0));
+        marco.setSlowResponses(getDouble("slow-rate", 0), getInt("slow-delay", 100));
+        marco.setListener(this::onMarcoEvent);
+        marco.start();
+
+        File dataFolder = Files.createTempDirectory("polo-loadtest").toFile();
+        Config config = new Config("127.0.0.1", marco.getPort(), "loadtest", true, true, true, true,
+                getInt("batch-size", 50), 20, options.getOrDefault("transport", "http"),
+                1024, 1, "drop-chat", 4096, 60, 3, 60, 250, 5000, 1024, 0);
+        HarnessPlugin plugin = new HarnessPlugin(dataFolder);
+        WebClient client = new WebClient(plugin, config);
+        if (!client.vibeCheck())
+            throw new IllegalStateException("The fake Marco failed the vibe check");
+        Sync sync = new Sync(plugin, client, config);
+        sync.start();
+
+        PoloPlayer[] online = new PoloPlayer[players];
+        for (int i = 0; i < players; ++i) {
+            online[i] = new PoloPlayer("Player" + i, UUID.randomUUID(), "Player" + i, null);
+            client.postJoin(online[i]);
+        }
+
+        System.out.printf("Sending %.1f chat messages/s from %d players and %.1f Matrix messages/s for %ds%n",
+                chatRate, players, roomRate, duration);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(duration);
+        // Send whatever is due every 10ms, so rates above 100/s work
+        scheduler.scheduleAtFixedRate(() -> {
+            long now = Math.min(System.nanoTime(), end);
+            double elapsed = (now - start) / 1e9;
+            while (chatSequence.get() < (long) (elapsed * chatRate))
+                sendChat(client, online);
+            while (roomSequence.get() < (long) (elapsed * roomRate))
+                sendRoomMessage();
+        }, 0, 10, TimeUnit.MILLISECONDS);
+
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()) + 20);
+        scheduler.shutdown();
+        scheduler.awaitTermination(1, TimeUnit.SECONDS);
+
+        // Give the last messages time to arrive, with the faults off
+        marco.setErrors(0, 500);
+        marco.setDrops(0);
+        long drainEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(getInt("drain", 10));
+        while ((!chatSent.isEmpty() || !roomSent.isEmpty()) && System.nanoTime() < drainEnd)
+            Thread.sleep(50);
+
+        System.out.println("Plugin queue: " + client.getQueueStats());
+        System.out.println("Plugin pool: " + client.getPoolStats());
+        sync.stop();
+        client.close();
+        marco.stop();
+        plugin.close();
+
+        long allowedLoss = getInt("allowed-loss", 0);
+        double seconds = duration;
+        boolean ok = report("Players to Marco", chatSequence.get(), chatReceived.get(), chatSent.size(),
+                chatDuplicates.get(), chatLatency, seconds) <= allowedLoss;
+        ok &= report("Matrix to players", roomSequence.get(), roomReceived.get(), roomSent.size(),
+                roomDuplicates.get(), roomLatency, seconds) <= allowedLoss;
+        System.out.println("Marco: " + marco.getStats());
+        for (String line : Metrics.get().describe())
+            System.out.println("  " + line);
+        return ok;
+    }
+
+    private void sendChat(WebClient client, PoloPlayer[] online) {
+        long sequence = chatSequence.getAndIncrement();
+        PoloPlayer player = online[random.nextInt(online.length)];
+        chatSent.put(sequence, System.nanoTime());
+        client.postChat(player, "message #" + sequence + " has anyone got spare iron?");
+    }
+
+    private void sendRoomMessage() {
+        long sequence = roomSequence.getAndIncrement();
+        String body = "**Update** #" + sequence + ": the server restarts at 18:00, see the wiki";
+        JSONArray bodyJson = new JSONArray()
+                .put(new JSONObject().put("type", "style").put("bold", true).put("content", "Update"))
+                .put(" #" + sequence + ": the server ")
+                .put(new JSONObject().put("type", "style").put("color", 0xff5555).put("content", "restarts"))
+                .put(" at 18:00, see ")
+                .put(new JSONObject().put("type", "link").put("href", "https://example.org/wiki")
+                        .put("content", "the wiki"))
+                .put(new JSONObject().put("type", "block").put("block", "quote")
+                        .put("content", new JSONArray().put("Back up your builds\n")
+                                .put(new JSONObject().put("type", "block").put("block", "bullet")
+                                        .put("content", "especially redstone"))));
+        JSONObject event = new JSONObject()
+                .put("type", "message.text")
+                .put("sender", new JSONObject().put("displayName", "admin").put("mxid", "@admin:example.org"))
+                .put("body", body)
+                .put("bodyJson", bodyJson);
+        roomSent.put(sequence, System.nanoTime());
+        marco.sendRoomEvent(event);
+    }
+
+    private void onMarcoEvent(JSONObject event) {
+        if (!event.getString("type").equals("chat"))
+            return;
+        received(event.getString("message"), chatSent, chatReceived, chatDuplicates, chatLatency);
+    }
+
+    private static void received(String text, ConcurrentHashMap<Long, Long> sent, AtomicLong count,
+                                 AtomicLong duplicates, LatencyHistogram latency) {
+        Matcher matcher = SEQUENCE.matcher(text);
+        if (!matcher.find())
+            return;
+        Long sentAt = sent.remove(Long.parseLong(matcher.group(1)));
+        if (sentAt == null) {
+            duplicates.incrementAndGet();
+            return;
+        }
+        latency.recordSince(sentAt);
+        count.incrementAndGet();
+    }
+
+    /**
+     * Print how one direction went.
+     * @return long Number of lost events
+     */
+    private static long report(String name, long sent, long received, long lost, long duplicates,
+                               LatencyHistogram latency, double seconds) {
+        System.out.printf("%s: %d sent, %d received (%.1f/s), %d lost, %d duplicates%n",
+                name, sent, received, received / seconds, lost, duplicates);
+        if (latency.getCount() > 0) {
+            System.out.printf("  latency p50 %.1fms, p90 %.1fms, p99 %.1fms, p99.9 %.1fms, max %.1fms%n",
+                    latency.getQuantile(0.5) / 1e6, latency.getQuantile(0.9) / 1e6,
+                    latency.getQuantile(0.99) / 1e6, latency.getQuantile(0.999) / 1e6,
+                    latency.getMax() / 1e6);
+        }
+        return lost;
+    }
+
+    /**
+     * Stands in for the server: schedules tasks on a thread pool and renders
+     * the Matrix messages sent to players, as the Bukkit plugin does.
+     */
+    private class HarnessPlugin implements PoloPlugin {
+        private final File dataFolder;
+        private final ScheduledExecutorService executor;
+        private final RenderCache renderCache = new RenderCache(256, 256 * 1024);
+
+        HarnessPlugin(File dataFolder) {
+            this.dataFolder = dataFolder;
+            this.executor = Executors.newScheduledThreadPool(4, runnable -> {
+                Thread thread = new Thread(runnable, "Load test plugin");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        void close() {
+            executor.shutdownNow();
+            File[] files = dataFolder.listFiles();
+            if (files != null) {
+                for (File file : files)
+                    file.delete();
+            }
+            dataFolder.delete();
+        }
+
+        @Override
+        public void broadcastMessage(String message, Object json) {
+            if (json != null)
+                renderCache.get(json).getComponent();
+            received(message, roomSent, roomReceived, roomDuplicates, roomLatency);
+        }
+
+        @Override
+        public void kickPlayer(UUID uuid, String reason, String source) {
+        }
+
+        @Override
+        public void banPlayer(UUID uuid, String reason, String source) {
+        }
+
+        @Override
+        public void unbanPlayer(UUID uuid, String source) {
+        }
+
+        @Override
+        public void executeAsync(Runnable task) {
+            executor.execute(task);
+        }
+
+        @Override
+        public void executeAsyncLater(Runnable task, long delay) {
+            executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public File getDataFolder() {
+            return dataFolder;
+        }
+    }
+}
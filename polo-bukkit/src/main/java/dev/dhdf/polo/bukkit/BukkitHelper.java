@@ -6,7 +6,9 @@
  */
 package dev.dhdf.polo.bukkit;
 
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 import java.util.Collection;
 import java.util.logging.Logger;
@@ -14,119 +16,151 @@ import java.util.logging.Logger;
 import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
 
-import com.google.common.collect.ForwardingMultimap;
-import com.google.common.collect.Iterables;
+import com.google.common.collect.Multimap;
 
 /**
  * Helper for isolation of bukkit version specific issues
+ *
+ * There is one helper, shared by every listener. On Paper the texture is
+ * read through the PlayerProfile API. Elsewhere the GameProfile is read from
+ * CraftPlayer, with the classes taken from the first player seen rather
+ * than from the versioned org.bukkit.craftbukkit package name, which newer
+ * servers no longer use. Either way the methods are looked up once, as
+ * MethodHandles.
  */
 public class BukkitHelper {
-    private String obc_package; // Package used for org.bukkit.craftbukkit
-    private boolean failed;
-    protected static final Object[] nullargs = new Object[0];
-
-    // CraftPlayer
-    private Class<?> obc_craftplayer;
-    private Method obcplayer_getprofile;
-    // GameProfile
-    private Class<?> cma_gameprofile;
-    private Method cmaprofile_getproperties;
-    // Property
-    private Class<?> cma_property;
-    private Method cmaproperty_getvalue;
-
-    protected BukkitHelper() {
-        failed = false;
-        /* Look up base classname for bukkit server - tells us OBC package */
-        obc_package = Bukkit.getServer().getClass().getPackage().getName();
-
-        // CraftPlayer
-        obc_craftplayer = getOBCClass("org.bukkit.craftbukkit.entity.CraftPlayer");
-        obcplayer_getprofile = getMethod(obc_craftplayer, new String[] { "getProfile" }, new Class[0]);
-        // GameProfile
-        cma_gameprofile = getOBCClass("com.mojang.authlib.GameProfile");
-        cmaprofile_getproperties = getMethod(cma_gameprofile, new String[] { "getProperties" }, new Class[0]);
-        // Property
-        cma_property = getOBCClass("com.mojang.authlib.properties.Property");
-        cmaproperty_getvalue = getMethod(cma_property, new String[] { "getValue" }, new Class[0]);
-
-        if (failed)
-            throw new IllegalArgumentException("Error initializing bukkit helper - bukkit version incompatible!");
-    }
+    private static final MethodType GETTER = MethodType.methodType(Object.class, Object.class);
+    private static BukkitHelper instance;
 
-    protected Class<?> getOBCClass(String classname) {
-        return getClassByName(classname, "org.bukkit.craftbukkit", obc_package, false);
-    }
+    private final Logger logger = Bukkit.getServer().getLogger();
 
-    protected Class<?> getClassByName(String classname, String base, String mapping, boolean nofail) {
-        String n = classname;
-        int idx = classname.indexOf(base);
-        if (idx >= 0) {
-            n = classname.substring(0, idx) + mapping + classname.substring(idx + base.length());
-        }
+    // Paper: Player.getPlayerProfile(), PlayerProfile.getProperties() and
+    // ProfileProperty.getName() / getValue()
+    private final MethodHandle paperGetProfile;
+    private final MethodHandle paperGetProperties;
+    private final MethodHandle paperPropertyName;
+    private final MethodHandle paperPropertyValue;
+
+    // CraftBukkit: CraftPlayer.getProfile(), GameProfile.getProperties() and
+    // Property.getValue(), looked up on first use
+    private volatile boolean craftResolved;
+    private MethodHandle craftGetProfile;
+    private MethodHandle craftGetProperties;
+    private MethodHandle craftPropertyValue;
+
+    private BukkitHelper() {
+        MethodHandle getProfile = null;
+        MethodHandle getProperties = null;
+        MethodHandle propertyName = null;
+        MethodHandle propertyValue = null;
         try {
-            return Class.forName(n);
-        } catch (ClassNotFoundException cnfx) {
-            try {
-                return Class.forName(classname);
-            } catch (ClassNotFoundException cnfx2) {
-                if (!nofail) {
-                    Logger logger = Bukkit.getServer().getLogger();
-                    logger.warning("Cannot find " + classname);
-                    failed = true;
-                }
-                return null;
-            }
+            Class<?> profile = Class.forName("com.destroystokyo.paper.profile.PlayerProfile");
+            Class<?> property = Class.forName("com.destroystokyo.paper.profile.ProfileProperty");
+            getProfile = getter(Player.class.getMethod("getPlayerProfile"));
+            getProperties = getter(profile.getMethod("getProperties"));
+            propertyName = getter(property.getMethod("getName"));
+            propertyValue = getter(property.getMethod("getValue"));
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // Not Paper
+            getProfile = null;
         }
+        this.paperGetProfile = getProfile;
+        this.paperGetProperties = getProperties;
+        this.paperPropertyName = propertyName;
+        this.paperPropertyValue = propertyValue;
+        this.craftResolved = false;
+    }
+
+    /**
+     * Get the helper, creating it on first use.
+     * @return BukkitHelper The helper
+     */
+    public static synchronized BukkitHelper get() {
+        if (instance == null)
+            instance = new BukkitHelper();
+        return instance;
     }
 
     /**
-     * Get method
+     * Get texture (which includes skin URL) for player
+     * @param player
+     * @return String The base64 textures property, or null if there isn't one
      */
-    protected Method getMethod(Class<?> cls, String[] ids, Class<?>[] args) {
-        if (cls == null)
+    public String getTexture(Player player) {
+        try {
+            if (paperGetProfile != null)
+                return getPaperTexture(player);
+            return getCraftTexture(player);
+        } catch (Throwable e) {
+            // Textures are optional, don't stop the event being relayed
             return null;
-        for(String id : ids) {
-            try {
-                return cls.getMethod(id, args);
-            } catch (SecurityException e) {
-            } catch (NoSuchMethodException e) {
-            }
         }
-        Logger logger = Bukkit.getServer().getLogger();
-        logger.warning("Unable to find method " + ids[0] + " for " + cls.getName());
-        failed = true;
-        return null;
     }
-    protected Object callMethod(Object obj, Method meth, Object[] args, Object def) {
-        if ((obj == null) || (meth == null))
-            return def;
-        try {
-            return meth.invoke(obj, args);
-        } catch (IllegalArgumentException iax) {
-        } catch (IllegalAccessException e) {
-        } catch (InvocationTargetException e) {
+
+    private String getPaperTexture(Player player) throws Throwable {
+        Object profile = (Object) paperGetProfile.invokeExact((Object) player);
+        Collection<?> properties = (Collection<?>) (Object) paperGetProperties.invokeExact(profile);
+        for (Object property : properties) {
+            if ("textures".equals((Object) paperPropertyName.invokeExact(property)))
+                return (String) (Object) paperPropertyValue.invokeExact(property);
         }
-        return def;
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private String getCraftTexture(Player player) throws Throwable {
+        if (!craftResolved)
+            resolveCraft(player);
+        if (craftGetProfile == null)
+            return null;
+
+        Object profile = (Object) craftGetProfile.invokeExact((Object) player);
+        if (profile == null)
+            return null;
+        Object properties = (Object) craftGetProperties.invokeExact(profile);
+        if (!(properties instanceof Multimap))
+            return null;
+        for (Object property : ((Multimap<String, ?>) properties).get("textures"))
+            return (String) (Object) craftPropertyValue.invokeExact(property);
+        return null;
     }
 
     /**
-     * Get texture (which includes skin URL) for player
-     * @param player
+     * Look up the CraftBukkit and authlib methods from the classes of a
+     * player and their profile.
      */
-    public String getTexture(Player player) {
-        Object profile = callMethod(player, obcplayer_getprofile, nullargs, null);
-        if (profile != null) {
-            Object propmap = callMethod(profile, cmaprofile_getproperties, nullargs, null);
-            if ((propmap != null) && (propmap instanceof ForwardingMultimap)) {
-                ForwardingMultimap<String, Object> fmm = (ForwardingMultimap<String, Object>) propmap;
-                Collection<Object> txt = fmm.get("textures");
-                Object textureProperty = Iterables.getFirst(fmm.get("textures"), null);
-                if (textureProperty != null)
-                    return (String) callMethod(textureProperty, cmaproperty_getvalue, nullargs, null);
+    private synchronized void resolveCraft(Player player) {
+        if (craftResolved)
+            return;
+        try {
+            Method getProfile = player.getClass().getMethod("getProfile");
+            Class<?> profile = getProfile.getReturnType();
+            Method getProperties = profile.getMethod("getProperties");
+            // Property became a record with value() in newer authlib
+            Class<?> property = Class.forName("com.mojang.authlib.properties.Property", false,
+                                              profile.getClassLoader());
+            Method getValue;
+            try {
+                getValue = property.getMethod("getValue");
+            } catch (NoSuchMethodException e) {
+                getValue = property.getMethod("value");
             }
+
+            craftGetProfile = getter(getProfile);
+            craftGetProperties = getter(getProperties);
+            craftPropertyValue = getter(getValue);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            logger.warning("Unable to read player textures on this server version: " + e);
+            craftGetProfile = null;
         }
+        craftResolved = true;
+    }
 
-        return null;
+    /**
+     * Make a MethodHandle taking and returning Object for a getter, so it can
+     * be called with invokeExact.
+     */
+    private static MethodHandle getter(Method method) throws IllegalAccessException {
+        return MethodHandles.publicLookup().unreflect(method).asType(GETTER);
     }
 }
@@ -0,0 +1,190 @@
+package dev.dhdf.polo.bukkit;
+
+import dev.dhdf.polo.types.RenderTier;
+import dev.dhdf.polo.types.RenderedMessage;
+import net.kyori.adventure.platform.bukkit.BukkitAudiences;
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.serializer.gson.GsonComponentSerializer;
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * Sends rendered Matrix messages to the online players.
+ *
+ * Players are split in one pass by whether they are mentioned and by what
+ * their client can display. On Spigot each variant of a message is
+ * serialised to JSON and parsed into BungeeCord chat components once, and
+ * the same components are sent to every player through Player.Spigot,
+ * rather than adventure serialising the message again for each player.
+ * Elsewhere messages go through adventure. Clients that only take legacy
+ * formatting get the legacy string.
+ */
+public class ChatBroadcaster {
+    // Keys for the forms of a message kept with it
+    private enum Payload {
+        FULL, FULL_HIGHLIGHT,
+        NAMED_COLOUR, NAMED_COLOUR_HIGHLIGHT;
+
+        static Payload of(RenderTier tier, boolean highlight) {
+            return values()[tier.ordinal() * 2 + (highlight ? 1 : 0)];
+        }
+    }
+
+    private static final RenderTier[] TIERS = RenderTier.values();
+
+    private final BukkitAudiences audiences;
+    private final ClientCapabilities capabilities;
+    private final Logger logger;
+    private final GsonComponentSerializer serializer;
+
+    // Player.spigot(), Player.Spigot.sendMessage(BaseComponent...) and
+    // ComponentSerializer.parse(String), or null if this isn't Spigot
+    private final MethodHandle spigot;
+    private final MethodHandle sendComponents;
+    private final MethodHandle parse;
+
+    public ChatBroadcaster(BukkitAudiences audiences, ClientCapabilities capabilities, Logger logger) {
+        this.audiences = audiences;
+        this.capabilities = capabilities;
+        this.logger = logger;
+
+        MethodHandle spigot = null;
+        MethodHandle sendComponents = null;
+        MethodHandle parse = null;
+        boolean hexColours = false;
+        try {
+            Class<?> baseComponents = Class.forName("[Lnet.md_5.bungee.api.chat.BaseComponent;");
+            Method getSpigot = Player.class.getMethod("spigot");
+            Method sendMessage = getSpigot.getReturnType().getMethod("sendMessage", baseComponents);
+            Method parseJson = Class.forName("net.md_5.bungee.chat.ComponentSerializer")
+                    .getMethod("parse", String.class);
+
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            spigot = lookup.unreflect(getSpigot)
+                    .asType(MethodType.methodType(Object.class, Player.class));
+            // Without asFixedArity() the handle of the varargs method
+            // would take the array it is passed as a single component
+            sendComponents = lookup.unreflect(sendMessage).asFixedArity()
+                    .asType(MethodType.methodType(void.class, Object.class, Object.class));
+            parse = lookup.unreflect(parseJson)
+                    .asType(MethodType.methodType(Object.class, String.class));
+
+            // RGB colours arrived in 1.16, along with ChatColor.of()
+            try {
+                Class.forName("net.md_5.bungee.api.ChatColor").getMethod("of", String.class);
+                hexColours = true;
+            } catch (NoSuchMethodException e) {
+                hexColours = false;
+            }
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // Not Spigot
+            spigot = null;
+        }
+        this.spigot = spigot;
+        this.sendComponents = sendComponents;
+        this.parse = parse;
+        this.serializer = hexColours ? GsonComponentSerializer.gson()
+                                     : GsonComponentSerializer.colorDownsamplingGson();
+    }
+
+    /**
+     * Send a message to the online players, highlighted for those mentioned.
+     * @param message The rendered message
+     */
+    public void broadcast(RenderedMessage message) {
+        broadcast(message, Bukkit.getOnlinePlayers());
+    }
+
+    /**
+     * Send a message to some players, highlighted for those mentioned.
+     * @param message The rendered message
+     * @param online  The players to send it to
+     */
+    @SuppressWarnings("unchecked")
+    public void broadcast(RenderedMessage message, Collection<? extends Player> online) {
+        // Players by tier, not mentioned and mentioned
+        List<Player>[] others = new List[TIERS.length];
+        List<Player>[] mentioned = new List[TIERS.length];
+
+        boolean roomMention = message.getRoomMention();
+        Set<UUID> mentions = message.getMentions();
+        for (Player player : online) {
+            // the whole room may have been mentioned
+            boolean highlight = roomMention
+                    || (!mentions.isEmpty() && mentions.contains(player.getUniqueId()));
+            List<Player>[] lists = highlight ? mentioned : others;
+            int tier = capabilities.getTier(player).ordinal();
+            if (lists[tier] == null)
+                lists[tier] = new ArrayList<>(highlight ? 4 : online.size());
+            lists[tier].add(player);
+        }
+
+        for (RenderTier tier : TIERS) {
+            // send a special highlighted variant to mentioned players
+            if (mentioned[tier.ordinal()] != null)
+                send(mentioned[tier.ordinal()], message, tier, true);
+            // and send the normal message to not-mentioned players
+            if (others[tier.ordinal()] != null)
+                send(others[tier.ordinal()], message, tier, false);
+        }
+    }
+
+    private void send(List<Player> players, RenderedMessage message, RenderTier tier, boolean highlight) {
+        if (tier == RenderTier.LEGACY) {
+            String legacy = highlight ? message.getLegacyHighlight() : message.getLegacy();
+            for (Player player : players)
+                player.sendMessage(legacy);
+            return;
+        }
+
+        Component component = highlight ? message.getComponentHighlight(tier) : message.getComponent(tier);
+        Object components = null;
+        if (spigot != null) {
+            try {
+                components = message.getPayload(Payload.of(tier, highlight), () -> toBungee(component));
+            } catch (RuntimeException e) {
+                logger.warning("Unable to convert message for Spigot, sending through adventure: " + e);
+            }
+        }
+
+        for (Player player : players) {
+            if (components != null) {
+                try {
+                    sendComponents.invokeExact((Object) spigot.invokeExact(player), components);
+                    continue;
+                } catch (Throwable e) {
+                    // Whatever is wrong is likely wrong for every player, so
+                    // warn once and send the rest through adventure
+                    logger.warning("Unable to send message through Spigot, sending through adventure: " + e);
+                    components = null;
+                }
+            }
+            audiences.player(player).sendMessage(component);
+        }
+    }
+
+    /**
+     * Serialise a component and parse it into BungeeCord chat components.
+     */
+    private Object toBungee(Component component) {
+        String json = serializer.serialize(component);
+        try {
+            return (Object) parse.invokeExact(json);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
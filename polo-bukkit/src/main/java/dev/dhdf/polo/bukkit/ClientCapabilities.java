@@ -0,0 +1,136 @@
+package dev.dhdf.polo.bukkit;
+
+import dev.dhdf.polo.types.RenderTier;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Works out what each player's client can display.
+ *
+ * Bedrock players coming through Floodgate get legacy formatting, and
+ * players on clients older than 1.16 coming through ViaVersion get named
+ * colours only. Both plugins are optional and looked up by reflection.
+ * A player's tier is worked out the first time it is needed and kept until
+ * they leave.
+ */
+public class ClientCapabilities implements Listener {
+    // First protocol version with RGB colours and fonts (1.16)
+    private static final int RGB_PROTOCOL = 735;
+
+    private final Logger logger;
+    private final ConcurrentHashMap<UUID, RenderTier> tiers = new ConcurrentHashMap<>();
+    // (UUID)boolean whether a player is on Bedrock, or null without Floodgate
+    private final MethodHandle isBedrock;
+    // (UUID)int a player's protocol version, or null without ViaVersion
+    private final MethodHandle protocolVersion;
+
+    public ClientCapabilities(Logger logger) {
+        this.logger = logger;
+        this.isBedrock = findFloodgate();
+        this.protocolVersion = findViaVersion();
+        if (isBedrock != null)
+            logger.info("Sending legacy formatting to Floodgate players");
+        if (protocolVersion != null)
+            logger.info("Sending named colours to ViaVersion players on older clients");
+    }
+
+    /**
+     * Get what a player's client can display.
+     * @param player The player
+     * @return RenderTier The player's tier
+     */
+    public RenderTier getTier(Player player) {
+        if (isBedrock == null && protocolVersion == null)
+            return RenderTier.FULL;
+
+        UUID uuid = player.getUniqueId();
+        RenderTier tier = tiers.get(uuid);
+        if (tier == null) {
+            tier = detect(uuid);
+            // Don't keep anything for players who have already left
+            if (player.isOnline())
+                tiers.put(uuid, tier);
+        }
+        return tier;
+    }
+
+    @EventHandler
+    public void onPlayerQuit(PlayerQuitEvent ev) {
+        tiers.remove(ev.getPlayer().getUniqueId());
+    }
+
+    private RenderTier detect(UUID uuid) {
+        try {
+            if (isBedrock != null && (boolean) isBedrock.invokeExact(uuid))
+                return RenderTier.LEGACY;
+            if (protocolVersion != null) {
+                int version = (int) protocolVersion.invokeExact(uuid);
+                // -1 if ViaVersion doesn't know the player yet
+                if (version >= 0 && version < RGB_PROTOCOL)
+                    return RenderTier.NAMED_COLOUR;
+            }
+        } catch (Throwable e) {
+            logger.warning("Unable to check client of " + uuid + ": " + e);
+        }
+        return RenderTier.FULL;
+    }
+
+    /**
+     * Find Floodgate's check for Bedrock players, from Floodgate 2 or 1.
+     */
+    private static MethodHandle findFloodgate() {
+        MethodType type = MethodType.methodType(boolean.class, UUID.class);
+        try {
+            Class<?> api = Class.forName("org.geysermc.floodgate.api.FloodgateApi");
+            Object instance = api.getMethod("getInstance").invoke(null);
+            return unreflect(api.getMethod("isFloodgatePlayer", UUID.class), instance, type);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // Not Floodgate 2
+        }
+        try {
+            Class<?> api = Class.forName("org.geysermc.floodgate.FloodgateAPI");
+            return unreflect(api.getMethod("isBedrockPlayer", UUID.class), null, type);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * Find ViaVersion's lookup of player protocol versions, from ViaVersion
+     * 4 or 3.
+     */
+    private static MethodHandle findViaVersion() {
+        MethodType type = MethodType.methodType(int.class, UUID.class);
+        for (String name : new String[] {"com.viaversion.viaversion.api.Via", "us.myles.ViaVersion.api.Via"}) {
+            try {
+                Method getApi = Class.forName(name).getMethod("getAPI");
+                Object api = getApi.invoke(null);
+                if (api == null)
+                    continue;
+                Method getVersion = getApi.getReturnType().getMethod("getPlayerVersion", UUID.class);
+                return unreflect(getVersion, api, type);
+            } catch (ReflectiveOperationException | LinkageError e) {
+                // Not this version
+            }
+        }
+        return null;
+    }
+
+    private static MethodHandle unreflect(Method method, Object receiver, MethodType type)
+            throws IllegalAccessException {
+        MethodHandle handle = MethodHandles.publicLookup().unreflect(method);
+        if (receiver != null)
+            handle = handle.bindTo(receiver);
+        return handle.asType(type);
+    }
+}
@@ -1,5 +1,6 @@
 package dev.dhdf.polo.bukkit;
 
+import dev.dhdf.polo.types.PlayerRegistry;
 import dev.dhdf.polo.types.PoloPlayer;
 import dev.dhdf.polo.webclient.WebClient;
 import org.bukkit.entity.Player;
@@ -13,8 +14,11 @@ import net.ess3.api.events.NickChangeEvent;
  * This class listens to all Essentials specific events happening on Minecraft.
  */
 public class Ess3Listener extends PoloListener implements Listener {
-    public Ess3Listener(Plugin plugin, WebClient client) {
-        super(plugin, client);
+    private final TickTracker.Task nickTask;
+
+    public Ess3Listener(Plugin plugin, WebClient client, PlayerRegistry players, TickTracker ticks) {
+        super(plugin, client, players, ticks);
+        this.nickTask = ticks.task("Ess3Listener.onNickChange");
     }
 
     // EssentialsX events
@@ -22,14 +26,15 @@ public class Ess3Listener extends PoloListener implements Listener {
     public void onNickChange(NickChangeEvent ev) {
         // To avoid complexities with interpreting the new nickname before it
         // has been applied, just wait a tick before posting the update.
-        plugin.getServer().getScheduler().runTask(plugin, () -> {
+        plugin.getServer().getScheduler().runTask(plugin, ticks.wrap(nickTask, () -> {
             Player player = ev.getController().getBase();
             // Avoid race with disconnect
             if (!player.isOnline())
                 return;
 
+            // Replaces the cached player and their JSON
             PoloPlayer poloPlayer = newPoloPlayer(player);
             this.client.postJoin(poloPlayer);
-        });
+        }));
     }
 }
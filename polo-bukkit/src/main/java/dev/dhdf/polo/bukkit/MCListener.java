@@ -1,5 +1,6 @@
 package dev.dhdf.polo.bukkit;
 
+import dev.dhdf.polo.types.PlayerRegistry;
 import dev.dhdf.polo.types.PoloPlayer;
 import dev.dhdf.polo.webclient.WebClient;
 import org.bukkit.Bukkit;
@@ -18,15 +19,27 @@ import org.bukkit.plugin.Plugin;
  * This class listens to all the standard bukkit events happening on Minecraft.
  */
 public class MCListener extends PoloListener implements Listener {
-    public MCListener(Plugin plugin, WebClient client) {
-        super(plugin, client);
+    private final TickTracker.Task joinTask;
+    private final TickTracker.Task quitTask;
+    private final TickTracker.Task kickTask;
+    private final TickTracker.Task deathTask;
+    private final TickTracker.Task chatTask;
+
+    public MCListener(Plugin plugin, WebClient client, PlayerRegistry players, TickTracker ticks) {
+        super(plugin, client, players, ticks);
+        this.joinTask = ticks.task("MCListener.onPlayerJoin");
+        this.quitTask = ticks.task("MCListener.onPlayerQuit");
+        this.kickTask = ticks.task("MCListener.onPlayerKick");
+        this.deathTask = ticks.task("MCListener.onPlayerDeath");
+        // Only counted when another plugin sends chat on the server thread
+        this.chatTask = ticks.task("MCListener.onPlayerChat");
     }
 
     @EventHandler
     public void onPlayerJoin(PlayerJoinEvent ev) {
         // Don't post the join immediately, allow other plugins to update the player
         // state (e.g. displayName or texture) first
-        plugin.getServer().getScheduler().runTaskLater(plugin, () -> {
+        plugin.getServer().getScheduler().runTaskLater(plugin, ticks.wrap(joinTask, () -> {
             Player player = ev.getPlayer();
             // Avoid race with disconnect
             if (!player.isOnline())
@@ -34,41 +47,62 @@ public class MCListener extends PoloListener implements Listener {
 
             PoloPlayer poloPlayer = newPoloPlayer(player);
             this.client.postJoin(poloPlayer);
-        }, 2);
+        }), 2);
     }
 
     @EventHandler
     public void onPlayerQuit(PlayerQuitEvent ev) {
-        Player player = ev.getPlayer();
-        PoloPlayer poloPlayer = newPoloPlayer(player);
+        long start = ticks.start();
+        try {
+            Player player = ev.getPlayer();
+            PoloPlayer poloPlayer = getPoloPlayer(player);
+            players.remove(player.getUniqueId());
 
-        this.client.postQuit(poloPlayer);
+            this.client.postQuit(poloPlayer);
+        } finally {
+            ticks.stop(quitTask, start);
+        }
     }
 
     @EventHandler(ignoreCancelled = true)
     public void onPlayerKick(PlayerKickEvent ev) {
-        Player player = ev.getPlayer();
-        String kickReason = ev.getReason();
-        PoloPlayer poloPlayer = newPoloPlayer(player);
+        long start = ticks.start();
+        try {
+            Player player = ev.getPlayer();
+            String kickReason = ev.getReason();
+            PoloPlayer poloPlayer = getPoloPlayer(player);
 
-        this.client.postKick(poloPlayer, kickReason);
+            this.client.postKick(poloPlayer, kickReason);
+        } finally {
+            ticks.stop(kickTask, start);
+        }
     }
 
     @EventHandler
     public void onPlayerDeath(PlayerDeathEvent ev) {
-        String message = ev.getDeathMessage();
-        Player player = ev.getEntity();
-        PoloPlayer poloPlayer = newPoloPlayer(player);
+        long start = ticks.start();
+        try {
+            String message = ev.getDeathMessage();
+            Player player = ev.getEntity();
+            PoloPlayer poloPlayer = getPoloPlayer(player);
 
-        this.client.postDeath(poloPlayer, message);
+            this.client.postDeath(poloPlayer, message);
+        } finally {
+            ticks.stop(deathTask, start);
+        }
     }
 
     @EventHandler(ignoreCancelled = true)
     public void onPlayerChat(AsyncPlayerChatEvent ev) {
-        String body = ev.getMessage();
-        Player player = ev.getPlayer();
-        PoloPlayer poloPlayer = newPoloPlayer(player);
+        long start = ticks.start();
+        try {
+            String body = ev.getMessage();
+            Player player = ev.getPlayer();
+            PoloPlayer poloPlayer = getPoloPlayer(player);
 
-        this.client.postChat(poloPlayer, body);
+            this.client.postChat(poloPlayer, body);
+        } finally {
+            ticks.stop(chatTask, start);
+        }
     }
 }
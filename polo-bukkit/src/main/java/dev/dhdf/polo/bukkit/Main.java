@@ -1,36 +1,43 @@
 package dev.dhdf.polo.bukkit;
 
 import dev.dhdf.polo.PoloPlugin;
+import dev.dhdf.polo.metrics.Metrics;
 import dev.dhdf.polo.util.Sync;
 import dev.dhdf.polo.webclient.Config;
 import dev.dhdf.polo.webclient.WebClient;
-import dev.dhdf.polo.types.IntermediateJSON;
+import dev.dhdf.polo.types.PlayerRegistry;
+import dev.dhdf.polo.types.RenderCache;
+import dev.dhdf.polo.types.RenderedMessage;
 import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
 import org.bukkit.OfflinePlayer;
 import org.bukkit.BanList;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandSender;
 //import org.bukkit.command.ConsoleCommandSender;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.plugin.PluginManager;
-import net.kyori.adventure.audience.Audience;
 import net.kyori.adventure.platform.bukkit.BukkitAudiences;
-import net.kyori.adventure.text.Component;
 
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.logging.Logger;
 import java.util.UUID;
-import java.util.Collection;
-import java.util.Set;
-import java.util.function.Predicate;
-import java.util.stream.Collectors;
 
 /**
  * This starts the plugin
  */
 public class Main extends JavaPlugin implements PoloPlugin {
+    // Rendered messages, up to 256 of them or 256k chars of text
+    private final RenderCache renderCache = new RenderCache(256, 256 * 1024);
     private BukkitAudiences audiences;
+    private ChatBroadcaster broadcaster;
+    private WebClient webClient;
+    private Sync sync;
+    private TickTracker ticks;
+    private TickTracker.Task kickTask;
+    private TickTracker.Task banTask;
 
     @Override
     public void onEnable() {
@@ -54,14 +61,37 @@ public class Main extends JavaPlugin implements PoloPlugin {
                 pluginConfig.getBoolean("relay-minecraft-membership"),
                 pluginConfig.getBoolean("relay-minecraft-deaths"),
                 pluginConfig.getBoolean("relay-matrix-kicks"),
-                pluginConfig.getBoolean("relay-matrix-bans")
+                pluginConfig.getBoolean("relay-matrix-bans"),
+                pluginConfig.getInt("batch-size", 50),
+                pluginConfig.getInt("batch-linger", 20),
+                pluginConfig.getString("transport", "http"),
+                pluginConfig.getInt("queue-capacity", 1024),
+                pluginConfig.getInt("sender-threads", 1),
+                pluginConfig.getString("queue-overflow", "drop-chat"),
+                pluginConfig.getInt("outbox-size", 4096),
+                pluginConfig.getInt("outbox-retention", 60),
+                pluginConfig.getInt("breaker-threshold", 3),
+                pluginConfig.getInt("breaker-max-wait", 60),
+                pluginConfig.getInt("sync-min-interval", 250),
+                pluginConfig.getInt("sync-max-interval", 5000),
+                pluginConfig.getInt("compress-threshold", 1024),
+                pluginConfig.getInt("metrics-interval", 0)
         );
 
+        renderCache.addGauges(Metrics.get());
+        this.ticks = new TickTracker(getLogger(), pluginConfig.getInt("tick-budget", 1000));
+        this.kickTask = ticks.task("Main.kickPlayer");
+        this.banTask = ticks.task("Main.banPlayer");
+        ticks.start(this);
+
         // Grab the adventure-platform-bukkit audiences object
         this.audiences = BukkitAudiences.create(this);
+        ClientCapabilities capabilities = new ClientCapabilities(getLogger());
+        getServer().getPluginManager().registerEvents(capabilities, this);
+        this.broadcaster = new ChatBroadcaster(audiences, capabilities, getLogger());
 
         // Start up the web client
-        WebClient webClient = new WebClient(
+        this.webClient = new WebClient(
                 this,
                 config
         );
@@ -71,13 +101,14 @@ public class Main extends JavaPlugin implements PoloPlugin {
 
         // Start up the Minecraft event listener
         PluginManager manager = getServer().getPluginManager();
-        manager.registerEvents(new MCListener(this, webClient), this);
+        PlayerRegistry players = new PlayerRegistry();
+        manager.registerEvents(new MCListener(this, webClient, players, ticks), this);
 
         logger.info("Started webclient and chat listeners");
 
         // Start up the Essentials event listener if the plugin is enabled
         if (manager.isPluginEnabled("Essentials")) {
-            manager.registerEvents(new Ess3Listener(this, webClient), this);
+            manager.registerEvents(new Ess3Listener(this, webClient, players, ticks), this);
             logger.info("Started Essentials listener");
         }
 
@@ -86,8 +117,8 @@ public class Main extends JavaPlugin implements PoloPlugin {
 
         if (vibeCheck) {
             logger.finer("Started bridge");
-            Sync sync = new Sync(webClient);
-            getServer().getScheduler().runTaskTimerAsynchronously(this, sync, 0, 5*20);
+            this.sync = new Sync(this, webClient, config);
+            sync.start();
         } else {
             logger.severe("Couldn't properly connect to marco is the address and port set properly?");
         }
@@ -95,9 +126,26 @@ public class Main extends JavaPlugin implements PoloPlugin {
 
     @Override
     public void onDisable() {
+        if (sync != null)
+            sync.stop();
+        if (webClient != null)
+            webClient.close();
     }
 
 
+    @Override
+    public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+        if (args.length != 1 || !args[0].equalsIgnoreCase("stats"))
+            return false;
+        if (webClient == null) {
+            sender.sendMessage("Polo isn't running");
+            return true;
+        }
+        for (String line : webClient.getStats())
+            sender.sendMessage(line);
+        return true;
+    }
+
     /**
      * This checks the integrity of the config.yaml
      *
@@ -120,37 +168,11 @@ public class Main extends JavaPlugin implements PoloPlugin {
     @Override
     public void broadcastMessage(String message, Object json) {
         if (json != null) {
-            IntermediateJSON intermediate = new IntermediateJSON(json);
-
-            // make audiences of mentioned and not mentioned players
-            Audience notMentionedAudience;
-            Audience mentionedAudience;
-
-            if (intermediate.getRoomMention()) {
-                // the whole room was mentioned
-                final Collection<Player> players = (Collection<Player>)Bukkit.getOnlinePlayers();
-                mentionedAudience = audiences.filter(s -> // s instanceof ConsoleCommandSender ||
-                                                          s instanceof Player);
-                notMentionedAudience = null;
-            } else {
-                final Set<UUID> mentions = intermediate.getMentions();
-                mentionedAudience = audiences.filter(s -> s instanceof Player &&
-                                                          mentions.contains(((Player)s).getUniqueId()));
-                notMentionedAudience = audiences.filter(s -> // s instanceof ConsoleCommandSender ||
-                                                             s instanceof Player &&
-                                                             !mentions.contains(((Player)s).getUniqueId()));
-            }
+            RenderedMessage intermediate = renderCache.get(json);
 
-            // send a special highlighted variant to mentioned players
-            if (mentionedAudience != null) {
-                Component mcJsonHighlight = intermediate.getComponentHighlight();
-                mentionedAudience.sendMessage(mcJsonHighlight);
-            }
-            // and send the normal message to not-mentioned players
-            if (notMentionedAudience != null) {
-                Component mcJson = intermediate.getComponent();
-                notMentionedAudience.sendMessage(mcJson);
-            }
+            long start = System.nanoTime();
+            broadcaster.broadcast(intermediate);
+            Metrics.get().histogram("polo_broadcast_seconds").recordSince(start);
 
             // FIXME RGB colours to console via Bukkit are corrupted
             // https://github.com/KyoriPowered/adventure-platform/issues/38
@@ -173,12 +195,12 @@ public class Main extends JavaPlugin implements PoloPlugin {
             logger.info("No player to kick with UUID " + uuid.toString());
             return;
         }
-        getServer().getScheduler().runTask(this, new Runnable() {
+        getServer().getScheduler().runTask(this, ticks.wrap(kickTask, new Runnable() {
             public void run() {
                 player.kickPlayer(reason);
                 getServer().broadcast(source + " kicked " + player.getName() + " for " + reason, "matrix.kick.notify");
             }
-        });
+        }));
     }
 
     @Override
@@ -198,11 +220,11 @@ public class Main extends JavaPlugin implements PoloPlugin {
         // If online, kick now
         Player player = offlinePlayer.getPlayer();
         if (player != null) {
-            getServer().getScheduler().runTask(this, new Runnable() {
+            getServer().getScheduler().runTask(this, ticks.wrap(banTask, new Runnable() {
                 public void run() {
                     player.kickPlayer("You have been banned: " + reason);
                 }
-            });
+            }));
         }
     }
 
@@ -233,4 +255,10 @@ public class Main extends JavaPlugin implements PoloPlugin {
     public void executeAsync(Runnable task) {
         this.getServer().getScheduler().runTaskAsynchronously(this, task);
     }
+
+    @Override
+    public void executeAsyncLater(Runnable task, long delay) {
+        // The scheduler counts in ticks of 50ms
+        this.getServer().getScheduler().runTaskLaterAsynchronously(this, task, Math.max(delay / 50, 1));
+    }
 }
@@ -1,5 +1,6 @@
 package dev.dhdf.polo.bukkit;
 
+import dev.dhdf.polo.types.PlayerRegistry;
 import dev.dhdf.polo.types.PoloPlayer;
 import dev.dhdf.polo.webclient.WebClient;
 import org.bukkit.entity.Player;
@@ -12,18 +13,45 @@ import org.bukkit.plugin.Plugin;
 public class PoloListener {
     protected final Plugin plugin;
     protected final WebClient client;
+    protected final PlayerRegistry players;
+    protected final TickTracker ticks;
     private final BukkitHelper helper;
 
-    public PoloListener(Plugin plugin, WebClient client) {
+    public PoloListener(Plugin plugin, WebClient client, PlayerRegistry players, TickTracker ticks) {
         this.plugin = plugin;
         this.client = client;
-        this.helper = new BukkitHelper();
+        this.players = players;
+        this.ticks = ticks;
+        this.helper = BukkitHelper.get();
     }
 
+    /**
+     * Take a new snapshot of a player, including their texture, e.g. when
+     * they join or change nickname.
+     */
     protected PoloPlayer newPoloPlayer(Player player) {
-        // Strip out Minecraft formatting codes from the display name
-        String displayName = player.getDisplayName().replaceAll("\u00a7.", "");
-        return new PoloPlayer(player.getName(), player.getUniqueId(),
-                              displayName, helper.getTexture(player));
+        return players.update(player.getUniqueId(), player.getName(), player.getDisplayName(),
+                              helper.getTexture(player));
+    }
+
+    /**
+     * Get the player's snapshot, taking a new one if their name or display
+     * name has changed since. Async chat can arrive after the player has
+     * quit, in which case the snapshot isn't registered, as nothing would
+     * remove it again.
+     */
+    protected PoloPlayer getPoloPlayer(Player player) {
+        PoloPlayer poloPlayer = players.get(player.getUniqueId(), player.getName(), player.getDisplayName());
+        if (poloPlayer != null)
+            return poloPlayer;
+        if (!player.isOnline())
+            return new PoloPlayer(player.getName(), player.getUniqueId(),
+                                  PlayerRegistry.stripFormatting(player.getDisplayName()), helper.getTexture(player));
+
+        poloPlayer = newPoloPlayer(player);
+        // They may have quit while the snapshot was taken
+        if (!player.isOnline())
+            players.remove(player.getUniqueId());
+        return poloPlayer;
     }
 }
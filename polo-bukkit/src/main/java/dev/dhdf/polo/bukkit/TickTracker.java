@@ -0,0 +1,209 @@
+package dev.dhdf.polo.bukkit;
+
+import dev.dhdf.polo.metrics.LatencyHistogram;
+import dev.dhdf.polo.metrics.Metrics;
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Measures the time polo spends on the server thread, to show whether the
+ * bridge has a part in a server falling behind 20 ticks a second.
+ *
+ * Listeners and tasks time their work as a named Task. Work done on other
+ * threads isn't counted, as it doesn't hold up ticks. Once a tick the
+ * tracker adds up the time of the tasks since the last tick, keeps the
+ * total for the last minute of ticks, and warns (at most once a minute)
+ * when a tick went over the budget, with what the time went on.
+ *
+ * Each call and each tick's total are also recorded in the metrics, as
+ * polo_tick_task_seconds{task=...} and polo_tick_seconds.
+ */
+public class TickTracker implements Runnable {
+    // A minute of ticks
+    private static final int WINDOW = 1200;
+    // Ticks between updates of the figures for the last minute
+    private static final int SUMMARY_INTERVAL = 20;
+    private static final long WARNING_INTERVAL = TimeUnit.MINUTES.toNanos(1);
+
+    /**
+     * Work done by polo on the server thread, e.g. an event listener.
+     */
+    public static final class Task {
+        private final String name;
+        private final LatencyHistogram calls;
+        // Since the last tick, only used on the server thread
+        private long tickNanos;
+        private int tickCalls;
+
+        private Task(String name) {
+            this.name = name;
+            this.calls = Metrics.get().histogram("polo_tick_task_seconds", "task", name);
+        }
+    }
+
+    private final Logger logger;
+    private final long budget;
+    // Copied on write, as tasks are only added while setting up
+    private volatile Task[] tasks = new Task[0];
+    private final LatencyHistogram tickTotals = Metrics.get().histogram("polo_tick_seconds");
+
+    // Only used on the server thread
+    // Tasks can run inside others, e.g. a kick inside a kick task, so only
+    // the outermost are added to the tick's total
+    private int depth;
+    private long tickTotal;
+    private final long[] recent = new long[WINDOW];
+    private int next;
+    private int filled;
+    private long lastWarning;
+    private int overSinceWarning;
+
+    // Figures for the last minute, for other threads (ns)
+    private volatile long recentP99;
+    private volatile long recentMax;
+    private volatile long overBudget;
+
+    /**
+     * Constructor.
+     * @param logger Where to warn of ticks over budget
+     * @param budget Time polo may take in a tick before a warning (us),
+     *               or 0 never to warn
+     */
+    public TickTracker(Logger logger, long budget) {
+        this.logger = logger;
+        this.budget = TimeUnit.MICROSECONDS.toNanos(budget);
+        this.lastWarning = System.nanoTime() - WARNING_INTERVAL;
+
+        Metrics metrics = Metrics.get();
+        metrics.gauge("polo_tick_recent_p99_micros", () -> recentP99 / 1000);
+        metrics.gauge("polo_tick_recent_max_micros", () -> recentMax / 1000);
+        metrics.gauge("polo_tick_over_budget", () -> overBudget);
+    }
+
+    /**
+     * Start adding up each tick.
+     * @param plugin The plugin to schedule with
+     */
+    public void start(Plugin plugin) {
+        plugin.getServer().getScheduler().runTaskTimer(plugin, this, 1, 1);
+    }
+
+    /**
+     * Get a task to time work with. Call this when setting up rather than
+     * for each piece of work.
+     * @param name Name of the task, e.g. the listener and event
+     * @return Task The task
+     */
+    public synchronized Task task(String name) {
+        Task task = new Task(name);
+        Task[] grown = Arrays.copyOf(tasks, tasks.length + 1);
+        grown[tasks.length] = task;
+        tasks = grown;
+        return task;
+    }
+
+    /**
+     * Start timing some work, pass the result to stop() in a finally block
+     * once it is done.
+     * @return long The start time, or -1 off the server thread
+     */
+    public long start() {
+        if (!Bukkit.isPrimaryThread())
+            return -1;
+        ++depth;
+        return System.nanoTime();
+    }
+
+    /**
+     * Finish timing some work.
+     * @param task  What the work was
+     * @param start What start() returned
+     */
+    public void stop(Task task, long start) {
+        if (start < 0)
+            return;
+        long nanos = System.nanoTime() - start;
+        if (--depth == 0)
+            tickTotal += nanos;
+        task.tickNanos += nanos;
+        ++task.tickCalls;
+        task.calls.record(nanos);
+    }
+
+    /**
+     * Time every run of a scheduled task.
+     * @param task     What the work is
+     * @param runnable The work
+     * @return Runnable The work, timed
+     */
+    public Runnable wrap(Task task, Runnable runnable) {
+        return () -> {
+            long start = start();
+            try {
+                runnable.run();
+            } finally {
+                stop(task, start);
+            }
+        };
+    }
+
+    /**
+     * Add up the last tick, on the server thread.
+     */
+    @Override
+    public void run() {
+        long total = tickTotal;
+        Task[] all = tasks;
+        tickTotal = 0;
+
+        tickTotals.record(total);
+        recent[next] = total;
+        next = (next + 1) % WINDOW;
+        filled = Math.min(filled + 1, WINDOW);
+        if (budget > 0 && total > budget) {
+            ++overBudget;
+            ++overSinceWarning;
+            long now = System.nanoTime();
+            if (now - lastWarning >= WARNING_INTERVAL) {
+                logger.warning(describeTick(all, total));
+                lastWarning = now;
+                overSinceWarning = 0;
+            }
+        }
+
+        for (Task task : all) {
+            task.tickNanos = 0;
+            task.tickCalls = 0;
+        }
+        if (next % SUMMARY_INTERVAL == 0)
+            summarise();
+    }
+
+    private String describeTick(Task[] all, long total) {
+        StringBuilder message = new StringBuilder();
+        message.append(String.format("Polo took %.2fms of the server thread in one tick (budget %.2fms):",
+                total / 1e6, budget / 1e6));
+        for (Task task : all) {
+            if (task.tickCalls > 0)
+                message.append(String.format(" %s %.2fms (%d calls)", task.name, task.tickNanos / 1e6, task.tickCalls));
+        }
+        if (overSinceWarning > 1)
+            message.append(String.format(", %d ticks over budget since the last warning", overSinceWarning));
+        return message.toString();
+    }
+
+    /**
+     * Work out the figures for the last minute of ticks.
+     */
+    private void summarise() {
+        int count = filled;
+        long[] sorted = Arrays.copyOf(recent, count);
+        Arrays.sort(sorted);
+        recentP99 = sorted[Math.max((int) Math.ceil(count * 0.99) - 1, 0)];
+        recentMax = sorted[count - 1];
+    }
+}
@@ -1,5 +1,6 @@
 package dev.dhdf.polo;
 
+import java.io.File;
 import java.util.UUID;
 
 public interface PoloPlugin {
@@ -37,4 +38,18 @@ public interface PoloPlugin {
      * @param task The task to execute asynchronously
      */
     public void executeAsync(Runnable task);
+
+    /**
+     * Execute a task asynchronously after a delay using the plugin's
+     * scheduler.
+     * @param task  The task to execute asynchronously
+     * @param delay How long to wait before executing it (ms)
+     */
+    public void executeAsyncLater(Runnable task, long delay);
+
+    /**
+     * Get the folder the plugin keeps its files in.
+     * @return File The data folder
+     */
+    public File getDataFolder();
 }
@@ -0,0 +1,116 @@
+package dev.dhdf.polo.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * A histogram of durations, recorded without locks from any thread.
+ *
+ * Like HdrHistogram, values are counted in buckets whose width grows with
+ * the value: each power of two is split into SUB_BUCKETS equal buckets, so
+ * any recorded value is known to within 1/SUB_BUCKETS of itself whether it
+ * is a microsecond or a minute, in a few KiB. Recording is a handful of
+ * atomic increments, with no allocation.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Longer durations than 2^40ns (about 18 minutes) count as that long
+    private static final int MAX_BITS = 40;
+    private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+    private static final int BUCKETS = (MAX_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a duration.
+     * @param nanos The duration (ns)
+     */
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        else if (nanos > MAX_VALUE)
+            nanos = MAX_VALUE;
+        counts.incrementAndGet(indexOf(nanos));
+        count.increment();
+        sum.add(nanos);
+
+        long current = max.get();
+        while (nanos > current && !max.compareAndSet(current, nanos))
+            current = max.get();
+    }
+
+    /**
+     * Record the time since a System.nanoTime() reading.
+     * @param start When the timed work started
+     */
+    public void recordSince(long start) {
+        record(System.nanoTime() - start);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Get the total of the recorded durations.
+     * @return long Sum (ns)
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Get the longest recorded duration.
+     * @return long Maximum (ns)
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Get the duration that a fraction of recordings were no longer than.
+     * Recordings made while this runs may or may not be counted.
+     * @param quantile Fraction of recordings, from 0 to 1
+     * @return long The duration (ns), or 0 if nothing was recorded
+     */
+    public long getQuantile(double quantile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0)
+            return 0;
+
+        long rank = Math.max((long) Math.ceil(quantile * total), 1);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return Math.min(highestValueOf(i), getMax());
+        }
+        return getMax();
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
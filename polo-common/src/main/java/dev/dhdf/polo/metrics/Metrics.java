@@ -0,0 +1,164 @@
+package dev.dhdf.polo.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+
+/**
+ * Counters, gauges and latency histograms describing what the bridge is
+ * doing, for the stats command, JMX and Prometheus.
+ *
+ * Metrics are named the Prometheus way, e.g. polo_http_requests_total, with
+ * at most one label, and are made the first time they are asked for. The
+ * same name and label always give the same metric, so callers on hot paths
+ * can keep hold of it. Counters are LongAdders, so threads counting at once
+ * don't contend.
+ */
+public class Metrics {
+    private static final Metrics INSTANCE = new Metrics();
+
+    private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    /**
+     * Get the metrics shared by everything in the plugin.
+     * @return Metrics The metrics
+     */
+    public static Metrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get a counter.
+     * @param name Name of the counter
+     * @return LongAdder The counter
+     */
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    /**
+     * Get a labelled counter, e.g. one of a count of events by type.
+     * @param name  Name of the counter
+     * @param label Name of the label
+     * @param value Value of the label
+     * @return LongAdder The counter
+     */
+    public LongAdder counter(String name, String label, String value) {
+        return counter(key(name, label, value));
+    }
+
+    /**
+     * Get a latency histogram.
+     * @param name Name of the histogram
+     * @return LatencyHistogram The histogram
+     */
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, k -> new LatencyHistogram());
+    }
+
+    /**
+     * Get a labelled latency histogram.
+     * @param name  Name of the histogram
+     * @param label Name of the label
+     * @param value Value of the label
+     * @return LatencyHistogram The histogram
+     */
+    public LatencyHistogram histogram(String name, String label, String value) {
+        return histogram(key(name, label, value));
+    }
+
+    /**
+     * Add a gauge, read whenever the metrics are, replacing any of the same
+     * name. It may be read from any thread, so must be quick and must not
+     * block.
+     * @param name  Name of the gauge
+     * @param value Reads the current value
+     */
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Remove a gauge, so whatever it reads can be garbage collected.
+     * @param name Name of the gauge
+     */
+    public void removeGauge(String name) {
+        gauges.remove(name);
+    }
+
+    /**
+     * Get the counters by name, in order.
+     * @return Map<String, Long> Current counts
+     */
+    public Map<String, Long> getCounters() {
+        Map<String, Long> values = new TreeMap<>();
+        counters.forEach((name, counter) -> values.put(name, counter.sum()));
+        return values;
+    }
+
+    /**
+     * Get the gauges by name, in order.
+     * @return Map<String, Long> Current values
+     */
+    public Map<String, Long> getGauges() {
+        Map<String, Long> values = new TreeMap<>();
+        gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        return values;
+    }
+
+    /**
+     * Get the histograms by name, in order.
+     * @return Map<String, LatencyHistogram> The histograms
+     */
+    public Map<String, LatencyHistogram> getHistograms() {
+        return new TreeMap<>(histograms);
+    }
+
+    /**
+     * Describe every metric in a line of text each, for players and the
+     * console.
+     * @return List<String> Lines of text
+     */
+    public List<String> describe() {
+        List<String> lines = new ArrayList<>();
+        getCounters().forEach((name, value) -> lines.add(name + " " + value));
+        getGauges().forEach((name, value) -> lines.add(name + " " + value));
+        getHistograms().forEach((name, histogram) -> {
+            long count = histogram.getCount();
+            if (count == 0) {
+                lines.add(name + " none");
+                return;
+            }
+            lines.add(String.format("%s n=%d mean=%s p50=%s p90=%s p99=%s max=%s", name, count,
+                    formatNanos(histogram.getSum() / count),
+                    formatNanos(histogram.getQuantile(0.5)),
+                    formatNanos(histogram.getQuantile(0.9)),
+                    formatNanos(histogram.getQuantile(0.99)),
+                    formatNanos(histogram.getMax())));
+        });
+        return lines;
+    }
+
+    private static String formatNanos(long nanos) {
+        if (nanos < TimeUnit.MILLISECONDS.toNanos(1))
+            return String.format("%.1fus", nanos / 1e3);
+        if (nanos < TimeUnit.SECONDS.toNanos(1))
+            return String.format("%.1fms", nanos / 1e6);
+        return String.format("%.2fs", nanos / 1e9);
+    }
+
+    /**
+     * Get the name of a labelled metric, as it appears in Prometheus.
+     */
+    static String key(String name, String label, String value) {
+        return name + '{' + label + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"}";
+    }
+}
@@ -0,0 +1,136 @@
+package dev.dhdf.polo.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Exposes the metrics over JMX, as dev.dhdf.polo:type=Metrics, e.g. for
+ * jconsole or a JMX exporter.
+ *
+ * Metrics are made as they are first used, so the attributes are whatever
+ * metrics exist when they are listed. Each histogram is a set of
+ * attributes: its count and its mean, p50, p99 and max in microseconds.
+ */
+public class MetricsMBean implements DynamicMBean {
+    private static final Logger logger = LoggerFactory.getLogger(MetricsMBean.class);
+    private static final String NAME = "dev.dhdf.polo:type=Metrics";
+
+    private final Metrics metrics;
+
+    public MetricsMBean(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Register the metrics with the platform MBean server, replacing those
+     * of an earlier load of the plugin.
+     * @param metrics The metrics
+     */
+    public static void register(Metrics metrics) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(NAME);
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+            server.registerMBean(new MetricsMBean(metrics), name);
+        } catch (JMException | SecurityException e) {
+            logger.warn("Unable to register metrics with JMX: {}", e.toString());
+        }
+    }
+
+    /**
+     * Unregister the metrics, so the plugin's classes can be unloaded.
+     */
+    public static void unregister() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(NAME);
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+        } catch (JMException | SecurityException e) {
+            logger.warn("Unable to unregister metrics from JMX: {}", e.toString());
+        }
+    }
+
+    private Map<String, Object> values() {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.putAll(metrics.getCounters());
+        values.putAll(metrics.getGauges());
+        metrics.getHistograms().forEach((name, histogram) -> {
+            long count = histogram.getCount();
+            values.put(name + ".count", count);
+            values.put(name + ".meanMicros", count > 0 ? histogram.getSum() / count / 1000 : 0L);
+            values.put(name + ".p50Micros", histogram.getQuantile(0.5) / 1000);
+            values.put(name + ".p99Micros", histogram.getQuantile(0.99) / 1000);
+            values.put(name + ".maxMicros", histogram.getMax() / 1000);
+        });
+        return values;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Object value = values().get(attribute);
+        if (value == null)
+            throw new AttributeNotFoundException(attribute);
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Object> values = values();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Object value = values.get(attribute);
+            if (value != null)
+                list.add(new Attribute(attribute, value));
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException, ReflectionException {
+        String name = attribute.getName();
+        if (!values().containsKey(name))
+            throw new AttributeNotFoundException(name);
+        // Metrics are read only, there is no setter
+        throw new ReflectionException(new NoSuchMethodException("set" + name), name + " is read only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        // There are no operations
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (String name : values().keySet())
+            attributes.add(new MBeanAttributeInfo(name, "java.lang.Long", name, true, false, false));
+        return new MBeanInfo(getClass().getName(), "Polo bridge metrics",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[0], null);
+    }
+}
@@ -0,0 +1,139 @@
+package dev.dhdf.polo.metrics;
+
+import dev.dhdf.polo.PoloPlugin;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+
+
+/**
+ * Writes the metrics in the Prometheus text format to metrics.prom in the
+ * plugin folder at an interval, scheduling itself again after each run, for
+ * the node exporter's textfile collector to pick up.
+ *
+ * The file is written beside it and then moved into place, so it is never
+ * read half written. Histograms are written as summaries, in seconds.
+ */
+public class PrometheusWriter implements Runnable {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    private final Logger logger = LoggerFactory.getLogger(PrometheusWriter.class);
+    private final PoloPlugin plugin;
+    private final Metrics metrics;
+    private final long interval;
+    private volatile boolean stopped;
+    private boolean failed;
+
+    /**
+     * Constructor.
+     * @param plugin   The plugin, which schedules each run
+     * @param metrics  The metrics to write
+     * @param interval How often to write them (ms)
+     */
+    public PrometheusWriter(PoloPlugin plugin, Metrics metrics, long interval) {
+        this.plugin = plugin;
+        this.metrics = metrics;
+        this.interval = interval;
+        this.stopped = false;
+        this.failed = false;
+    }
+
+    /**
+     * Write the metrics straight away, and then at the interval.
+     */
+    public void start() {
+        plugin.executeAsync(this);
+    }
+
+    public void stop() {
+        stopped = true;
+    }
+
+    @Override
+    public void run() {
+        if (stopped)
+            return;
+        try {
+            write(new File(plugin.getDataFolder(), "metrics.prom").toPath());
+            failed = false;
+        } catch (IOException e) {
+            // Only log the first of a run of failures
+            if (!failed)
+                logger.warn("Unable to write metrics.prom: {}", e.toString());
+            failed = true;
+        } finally {
+            if (!stopped)
+                plugin.executeAsyncLater(this, interval);
+        }
+    }
+
+    private void write(Path path) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            format(out);
+        }
+        try {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Write the metrics in the Prometheus text format.
+     * @param out Where to write them
+     * @throws IOException if they couldn't be written
+     */
+    public void format(Writer out) throws IOException {
+        String family = null;
+        for (Map.Entry<String, Long> counter : metrics.getCounters().entrySet()) {
+            family = writeType(out, family, counter.getKey(), "counter");
+            out.write(counter.getKey() + " " + counter.getValue() + "\n");
+        }
+        for (Map.Entry<String, Long> gauge : metrics.getGauges().entrySet()) {
+            family = writeType(out, family, gauge.getKey(), "gauge");
+            out.write(gauge.getKey() + " " + gauge.getValue() + "\n");
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : metrics.getHistograms().entrySet()) {
+            String name = entry.getKey();
+            LatencyHistogram histogram = entry.getValue();
+            family = writeType(out, family, name, "summary");
+
+            int brace = name.indexOf('{');
+            String base = brace < 0 ? name : name.substring(0, brace);
+            String labels = brace < 0 ? "" : name.substring(brace + 1, name.length() - 1) + ",";
+            for (double quantile : QUANTILES) {
+                out.write(base + "{" + labels + "quantile=\"" + quantile + "\"} "
+                        + seconds(histogram.getQuantile(quantile)) + "\n");
+            }
+            String suffix = brace < 0 ? "" : name.substring(brace);
+            out.write(base + "_sum" + suffix + " " + seconds(histogram.getSum()) + "\n");
+            out.write(base + "_count" + suffix + " " + histogram.getCount() + "\n");
+        }
+    }
+
+    /**
+     * Write the TYPE line for a metric if it starts a new family.
+     * @return String The metric's family
+     */
+    private static String writeType(Writer out, String family, String name, String type) throws IOException {
+        int brace = name.indexOf('{');
+        String base = brace < 0 ? name : name.substring(0, brace);
+        if (!base.equals(family))
+            out.write("# TYPE " + base + " " + type + "\n");
+        return base;
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+}
@@ -0,0 +1,274 @@
+package dev.dhdf.polo.types;
+
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Writes events as UTF-8 JSON straight into a reusable buffer, without
+ * building a JSONObject tree, a String and then its bytes for each one.
+ *
+ * The output is the same as JSONObject.toString() would give: the same
+ * escaping, null values left out, and even the same key order (that of the
+ * HashMap inside JSONObject). Events it doesn't know are written through
+ * their toJSON().
+ *
+ * The JSON of a player is kept with the PoloPlayer and copied into every
+ * later event from it, see PlayerRegistry.
+ *
+ * A codec isn't thread safe, use get() for the current thread's.
+ */
+public class EventCodec {
+    // Don't hang on to the buffer of an unusually large event
+    private static final int MAX_RETAINED = 64 * 1024;
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+    private static final ThreadLocal<EventCodec> LOCAL = ThreadLocal.withInitial(EventCodec::new);
+
+    private byte[] buf;
+    private int count;
+
+    public EventCodec() {
+        this.buf = new byte[1024];
+        this.count = 0;
+    }
+
+    /**
+     * Get the codec for the current thread.
+     * @return EventCodec The codec
+     */
+    public static EventCodec get() {
+        return LOCAL.get();
+    }
+
+    /**
+     * Encode an event as it is posted to its own endpoint.
+     * @param event The event
+     * @return byte[] UTF-8 JSON
+     */
+    public byte[] encode(MCEvent event) {
+        reset();
+        writeEvent(event, false);
+        return toByteArray();
+    }
+
+    /**
+     * Encode events as a batch, {"events": [...]}, each with its type.
+     * @param events The events, in order
+     * @return byte[] UTF-8 JSON
+     */
+    public byte[] encodeBatch(List<? extends MCEvent> events) {
+        reset();
+        writeAscii("{\"events\":[");
+        for (int i = 0; i < events.size(); ++i) {
+            if (i > 0)
+                write(',');
+            writeEvent(events.get(i), true);
+        }
+        writeAscii("]}");
+        return toByteArray();
+    }
+
+    private void writeEvent(MCEvent event, boolean withType) {
+        String type = withType ? event.getType() : null;
+        if (event instanceof MCMessage) {
+            MCMessage message = (MCMessage) event;
+            writeEvent("message", message.message, type, message.player);
+        } else if (event instanceof MCDeath) {
+            MCDeath death = (MCDeath) event;
+            writeEvent("message", death.message, type, death.player);
+        } else if (event instanceof MCKick) {
+            MCKick kick = (MCKick) event;
+            writeEvent("reason", kick.reason, type, kick.player);
+        } else if (event instanceof MCJoin) {
+            writeEvent(null, null, type, ((MCJoin) event).player);
+        } else if (event instanceof MCQuit) {
+            writeEvent(null, null, type, ((MCQuit) event).player);
+        } else {
+            JSONObject json = event.toJSON();
+            if (type != null)
+                json.put("type", type);
+            writeString(json.toString(), false);
+        }
+    }
+
+    /**
+     * Write an event in JSONObject's key order: the text, type, player.
+     */
+    private void writeEvent(String key, String text, String type, PoloPlayer player) {
+        write('{');
+        boolean first = true;
+        if (text != null)
+            first = writeField(key, text, first);
+        if (type != null)
+            first = writeField("type", type, first);
+        if (player != null) {
+            if (!first)
+                write(',');
+            writeAscii("\"player\":");
+            writePlayer(player);
+        }
+        write('}');
+    }
+
+    /**
+     * Write a player, reusing the JSON written for it before.
+     */
+    private void writePlayer(PoloPlayer player) {
+        byte[] json = player.json;
+        if (json != null) {
+            ensureCapacity(json.length);
+            System.arraycopy(json, 0, buf, count, json.length);
+            count += json.length;
+            return;
+        }
+
+        int start = count;
+        writePlayerFields(player);
+        player.json = Arrays.copyOfRange(buf, start, count);
+    }
+
+    /**
+     * Write a player in JSONObject's key order.
+     */
+    private void writePlayerFields(PoloPlayer player) {
+        write('{');
+        boolean first = true;
+        first = writeField("displayName", player.displayName, first);
+        first = writeField("texture", player.texture, first);
+        first = writeField("name", player.name, first);
+        writeField("uuid", player.uuid, first);
+        write('}');
+    }
+
+    private boolean writeField(String key, String value, boolean first) {
+        // Like JSONObject, leave out nulls
+        if (value == null)
+            return first;
+        if (!first)
+            write(',');
+        write('"');
+        writeAscii(key);
+        writeAscii("\":");
+        writeString(value, true);
+        return false;
+    }
+
+    /**
+     * Write a string as UTF-8, quoted and escaped the way JSONObject.quote()
+     * does, or as it is.
+     */
+    private void writeString(String string, boolean quote) {
+        ensureCapacity(string.length() + 2);
+        if (quote)
+            buf[count++] = '"';
+        char prev = 0;
+        for (int i = 0, len = string.length(); i < len; ++i) {
+            char c = string.charAt(i);
+            // Room for the longest a char can get, a unicode escape
+            ensureCapacity(6);
+            if (c < 0x80 && (!quote || (c >= ' ' && c != '"' && c != '\\' && c != '/'))) {
+                buf[count++] = (byte) c;
+            } else if (c < 0x80) {
+                switch (c) {
+                case '"':
+                case '\\':
+                    writeEscape(c);
+                    break;
+                case '/':
+                    if (prev == '<')
+                        buf[count++] = '\\';
+                    buf[count++] = '/';
+                    break;
+                case '\b':
+                    writeEscape('b');
+                    break;
+                case '\t':
+                    writeEscape('t');
+                    break;
+                case '\n':
+                    writeEscape('n');
+                    break;
+                case '\f':
+                    writeEscape('f');
+                    break;
+                case '\r':
+                    writeEscape('r');
+                    break;
+                default:
+                    writeUnicodeEscape(c);
+                }
+            } else if (quote && ((c >= '\u0080' && c < '\u00a0') || (c >= '\u2000' && c < '\u2100'))) {
+                writeUnicodeEscape(c);
+            } else if (c < 0x800) {
+                buf[count++] = (byte) (0xc0 | (c >> 6));
+                buf[count++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // A pair is one 4 byte sequence, and like String.getBytes()
+                // a lone surrogate becomes '?'
+                char low = i + 1 < len ? string.charAt(i + 1) : 0;
+                if (Character.isHighSurrogate(c) && Character.isLowSurrogate(low)) {
+                    int cp = Character.toCodePoint(c, low);
+                    buf[count++] = (byte) (0xf0 | (cp >> 18));
+                    buf[count++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    buf[count++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    buf[count++] = (byte) (0x80 | (cp & 0x3f));
+                    c = low;
+                    ++i;
+                } else {
+                    buf[count++] = '?';
+                }
+            } else {
+                buf[count++] = (byte) (0xe0 | (c >> 12));
+                buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buf[count++] = (byte) (0x80 | (c & 0x3f));
+            }
+            prev = c;
+        }
+        ensureCapacity(1);
+        if (quote)
+            buf[count++] = '"';
+    }
+
+    private void writeEscape(char c) {
+        buf[count++] = '\\';
+        buf[count++] = (byte) c;
+    }
+
+    private void writeUnicodeEscape(char c) {
+        buf[count++] = '\\';
+        buf[count++] = 'u';
+        buf[count++] = HEX[(c >> 12) & 0xf];
+        buf[count++] = HEX[(c >> 8) & 0xf];
+        buf[count++] = HEX[(c >> 4) & 0xf];
+        buf[count++] = HEX[c & 0xf];
+    }
+
+    private void writeAscii(String ascii) {
+        int len = ascii.length();
+        ensureCapacity(len);
+        for (int i = 0; i < len; ++i)
+            buf[count++] = (byte) ascii.charAt(i);
+    }
+
+    private void write(char c) {
+        ensureCapacity(1);
+        buf[count++] = (byte) c;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (count + extra > buf.length)
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + extra));
+    }
+
+    private void reset() {
+        if (buf.length > MAX_RETAINED)
+            buf = new byte[1024];
+        count = 0;
+    }
+
+    private byte[] toByteArray() {
+        return Arrays.copyOf(buf, count);
+    }
+}
@@ -0,0 +1,108 @@
+package dev.dhdf.polo.types;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Widths of characters in Minecraft's default font, for lining text up with
+ * whitespace.
+ *
+ * The widths are read from glyph-widths.txt next to this class into a table
+ * indexed by char, so looking one up is a single array access.
+ */
+public final class GlyphWidths {
+    private static final Logger logger = LoggerFactory.getLogger(GlyphWidths.class);
+    private static final String RESOURCE = "glyph-widths.txt";
+    // Width of anything not in the table
+    private static final byte DEFAULT_WIDTH = 6;
+    private static final byte[] widths = load();
+
+    private GlyphWidths() {
+    }
+
+    /**
+     * Get the width of a character.
+     * @param c    The character
+     * @param bold Whether it is bold
+     * @return int Width in scaled pixels
+     */
+    public static int width(char c, boolean bold) {
+        int width = widths[c];
+        // Bold glyphs are drawn twice, 1px apart
+        if (bold && width > 0)
+            ++width;
+        return width;
+    }
+
+    /**
+     * Get the width of some text.
+     * @param str  The text
+     * @param bold Whether it is bold
+     * @return int Width in scaled pixels
+     */
+    public static int width(CharSequence str, boolean bold) {
+        int width = 0;
+        for (int i = 0, len = str.length(); i < len; ++i)
+            width += width(str.charAt(i), bold);
+        return width;
+    }
+
+    private static byte[] load() {
+        byte[] table = new byte[Character.MAX_VALUE + 1];
+        Arrays.fill(table, DEFAULT_WIDTH);
+
+        InputStream in = GlyphWidths.class.getResourceAsStream(RESOURCE);
+        if (in == null) {
+            logger.warn("Missing {}, text may not line up", RESOURCE);
+            return table;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                String[] fields = line.split("\\s+");
+                byte width = Byte.parseByte(fields[0]);
+                for (int i = 1; i < fields.length; ++i)
+                    parseChars(table, fields[i], width);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            logger.warn("Unable to read {}, text may not line up", RESOURCE, e);
+        }
+        return table;
+    }
+
+    /**
+     * Set the width of the characters in a field, either literal characters,
+     * a U+XXXX code point or a U+XXXX-U+YYYY range.
+     */
+    private static void parseChars(byte[] table, String field, byte width) {
+        if (!field.startsWith("U+")) {
+            for (int i = 0; i < field.length(); ++i)
+                table[field.charAt(i)] = width;
+            return;
+        }
+
+        int dash = field.indexOf('-');
+        int first = parseCodePoint(dash < 0 ? field : field.substring(0, dash));
+        int last = dash < 0 ? first : parseCodePoint(field.substring(dash + 1));
+        Arrays.fill(table, first, last + 1, width);
+    }
+
+    private static int parseCodePoint(String field) {
+        if (!field.startsWith("U+"))
+            throw new IllegalArgumentException("Invalid code point: " + field);
+        int codePoint = Integer.parseInt(field.substring(2), 16);
+        if (codePoint > Character.MAX_VALUE)
+            throw new IllegalArgumentException("Code point outside the BMP: " + field);
+        return codePoint;
+    }
+}
@@ -12,13 +12,15 @@ import net.kyori.adventure.text.format.Style;
 import net.kyori.adventure.text.format.TextColor;
 import net.kyori.adventure.text.format.TextDecoration;
 import net.kyori.adventure.text.serializer.legacy.LegacyComponentSerializer;
-import net.kyori.adventure.text.serializer.plain.PlainComponentSerializer;
 
 import java.lang.IllegalArgumentException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.UUID;
-import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.Set;
 import java.util.HashSet;
 
@@ -44,7 +46,8 @@ public class IntermediateJSON {
     /**
      * Constructor.
      * @param json Object Intermediate JSON formatted message data from
-     *                    appservice.
+     *                    appservice, or a MatrixMessage to render it with
+     *                    its sender.
      */
     public IntermediateJSON(Object json) {
         this.json = json;
@@ -64,7 +67,7 @@ public class IntermediateJSON {
         if (component == null) {
             if (mentions == null)
                 mentions = new HashSet<UUID>();
-            component = toComponent(json, null, 0, 0, new StringBuilder(), new StringBuilder(), textWidth, false);
+            component = toComponent(json, null, 0, 0, new LineWidth(), textWidth, false, false);
         }
         return component;
     }
@@ -133,56 +136,117 @@ public class IntermediateJSON {
      * sender.
      */
     private static int maxDepth = 100*2 + 3;
+    // Prefix for each line of a quote
+    private static final String QUOTE = "| ";
 
     /**
      * Convert a chunk of intermediate JSON to a text component.
+     *
+     * The tree is walked with an explicit stack of the arrays and objects
+     * being converted rather than by recursion, each finished component
+     * being appended to the one of the frame below it.
+     *
      * @param json        Object        Intermediate JSON formatted message data from appservice.
-     * @param indentation ArrayList     List of indentation components to be inserted after each newline.
+     * @param indentation Indentation   Indentation to be inserted after each newline.
      * @param depth       int           Depth of recursion (limited to maxDepth).
      * @param bulletDepth int           Depth of bullets (changes type of bullets).
-     * @param curLine     StringBuilder Current line of text (excl. indentation).
-     * @param fullCurLine StringBuilder Current line of text (incl. indentation).
+     * @param line        LineWidth     Width of the current line of text.
      * @param maxWidth    int           Max line width.
      * @param obfuscated  boolean       Whether the component is already obfuscated.
+     * @param bold        boolean       Whether the text is bold.
      * @return Component Text component.
      */
     private Component toComponent(/* inputs */
                                   Object json,
                                   /* intermediates */
-                                  ArrayList<Component> indentation,
+                                  Indentation indentation,
                                   int depth, int bulletDepth,
-                                  StringBuilder curLine, StringBuilder fullCurLine,
-                                  int maxWidth, boolean obfuscated) {
-        // Rather bluntly avoid a stack overflow.
+                                  LineWidth line,
+                                  int maxWidth, boolean obfuscated, boolean bold) {
+        ArrayDeque<Frame> stack = new ArrayDeque<Frame>();
+        Component value = open(stack, json, indentation, depth, bulletDepth, line, maxWidth, obfuscated, bold);
+        // Whether value is the component of a finished child of the top frame
+        boolean finished = stack.isEmpty();
+        while (!stack.isEmpty()) {
+            Frame frame = stack.peek();
+            if (finished)
+                frame.builder.append(value);
+
+            Object child = frame.nextChild();
+            if (child != null) {
+                int size = stack.size();
+                value = open(stack, child, frame.indentation, frame.depth, frame.bulletDepth,
+                             line, maxWidth, frame.obfuscated, frame.bold);
+                finished = stack.size() == size;
+            } else {
+                stack.pop();
+                value = frame.build();
+                finished = true;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Start converting a chunk of intermediate JSON. Strings are converted
+     * straight away, arrays and objects get a frame pushed on the stack for
+     * their children to be converted into.
+     * @return Component Text component, or null if a frame was pushed.
+     */
+    private Component open(Deque<Frame> stack,
+                           Object json,
+                           Indentation indentation,
+                           int depth, int bulletDepth,
+                           LineWidth line,
+                           int maxWidth, boolean obfuscated, boolean bold) {
+        // Rather bluntly limit the depth.
         if (++depth > maxDepth)
             return Component.text("");
 
         if (json instanceof String) {
-            return stringToComponent((String)json, indentation, curLine, fullCurLine);
+            return stringToComponent((String)json, indentation, line, bold);
         } else if (json instanceof JSONArray) {
-            JSONArray arr = (JSONArray)json;
-            TextComponent.Builder ret = Component.text();
-            for (Object obj: arr)
-                if (obj != null)
-                    ret.append(toComponent(obj, indentation, depth, bulletDepth, curLine, fullCurLine, maxWidth, obfuscated));
-            return ret.build();
+            stack.push(new Frame((JSONArray)json, Component.text(), null,
+                                 indentation, depth, bulletDepth, obfuscated, bold));
+            return null;
+        } else if (json instanceof MatrixMessage) {
+            stack.push(new Frame(((MatrixMessage)json).parts.iterator(), Component.text(), null,
+                                 indentation, depth, bulletDepth, obfuscated, bold));
+            return null;
+        } else if (json instanceof UserMention) {
+            MatrixUser user = ((UserMention)json).user;
+            TextComponent.Builder newObj = Component.text();
+            userToComponent(user.displayName, user.mxid, null, newObj);
+            stack.push(new Frame(Collections.<Object>singletonList(user.displayName).iterator(), newObj, null,
+                                 indentation, depth, bulletDepth, obfuscated, bold));
+            return null;
+        } else if (json instanceof Inline) {
+            String spaces = indentTo(" ", line.width, true, bold);
+            indentation = new Indentation(indentation, Component.text(spaces), spaces);
+            stack.push(new Frame(Collections.singletonList(((Inline)json).content).iterator(), Component.text(), null,
+                                 indentation, depth, bulletDepth, obfuscated, bold));
+            return null;
         } else if (json instanceof JSONObject) {
             JSONObject obj = (JSONObject)json;
             TextComponent.Builder newObj = Component.text();
             Component indentNow = null;
+            int indentNowWidth = 0;
+            boolean contentBold = bold;
             String type = obj.getString("type");
             switch (type) {
             case "block":
-                Component newIndentation = null;
                 String blockType = obj.optString("block", "");
                 switch (blockType) {
                 case "quote":
-                    newIndentation = quoteToComponent(obfuscated);
-                    indentNow = newIndentation;
+                    indentNow = quoteToComponent(obfuscated);
+                    indentNowWidth = GlyphWidths.width(QUOTE, bold);
+                    indentation = new Indentation(indentation, indentNow, QUOTE);
                     break;
                 case "bullet":
                     String text = bulletToText(obj, bulletDepth);
-                    newIndentation = Component.text(indentFor(text, " "));
+                    indentNowWidth = GlyphWidths.width(text, bold);
+                    String spaces = indentTo(" ", indentNowWidth, true, bold);
+                    indentation = new Indentation(indentation, Component.text(spaces), spaces);
 
                     TextComponent bullet = Component.text(text, NamedTextColor.GRAY);
                     indentNow = bullet;
@@ -190,21 +254,16 @@ public class IntermediateJSON {
                     ++bulletDepth;
                     break;
                 case "inline":
-                    newIndentation = Component.text(indentFor(curLine.toString(), " "));
+                    spaces = indentTo(" ", line.width, true, bold);
+                    indentation = new Indentation(indentation, Component.text(spaces), spaces);
                     break;
                 }
-                if (newIndentation != null) {
-                    if (indentation == null)
-                        indentation = new ArrayList<Component>();
-                    else
-                        indentation = new ArrayList<Component>(indentation);
-                    // Append indentation
-                    indentation.add(newIndentation);
-                }
                 break;
             case "style":
                 if (styleToComponent(obj, depth, bulletDepth, newObj))
                     obfuscated = true;
+                if (obj.optBoolean("bold", false) || obj.optInt("heading", 0) > 0)
+                    contentBold = true;
                 break;
             case "link":
                 linkToComponent(obj, newObj);
@@ -216,20 +275,13 @@ public class IntermediateJSON {
                 imgToComponent(obj, newObj);
                 break;
             case "horizontalRule":
-                hrToComponent(obj, fullCurLine, maxWidth, newObj);
+                hrToComponent(obj, line.fullWidth, maxWidth, bold, newObj);
                 break;
             }
-            if (indentNow != null)
-                fullCurLine.append(PlainComponentSerializer.plain().serialize(indentNow));
-            if (obj.has("content"))
-                newObj.append(toComponent(obj.get("content"), indentation, depth, bulletDepth, curLine, fullCurLine, maxWidth, obfuscated));
-            if (indentNow != null) {
-                TextComponent.Builder indented = Component.text();
-                indented.append(indentNow);
-                indented.append(newObj.build());
-                return indented.build();
-            }
-            return newObj.build();
+            line.fullWidth += indentNowWidth;
+            stack.push(new Frame(obj, newObj, indentNow,
+                                 indentation, depth, bulletDepth, obfuscated, contentBold));
+            return null;
         } else {
             return null;
         }
@@ -238,58 +290,43 @@ public class IntermediateJSON {
     /**
      * Convert a string in intermediate JSON to a text component.
      * @param text        String        Intermediate JSON raw string from appservice.
-     * @param indentation ArrayList     List of indentation components to be inserted after each newline.
-     * @param curLine     StringBuilder Current line of text (excl. indentation).
-     * @param fullCurLine StringBuilder Current line of text (incl. indentation).
+     * @param indentation Indentation   Indentation to be inserted after each newline.
+     * @param line        LineWidth     Width of the current line of text.
+     * @param bold        boolean       Whether the text is bold.
      * @return Component Text component.
      */
     private static Component stringToComponent(String text,
-                                               ArrayList<Component> indentation,
-                                               StringBuilder curLine,
-                                               StringBuilder fullCurLine) {
-        // Split after newlines and inject indentation
-        if (indentation != null) {
-            String[] lines = text.split("\n", -1);
-            if (lines.length > 1) {
-                TextComponent.Builder ret = Component.text();
-                for (int i = 0; i < lines.length - 1; ++i) {
-                    ret.append(Component.text(lines[i] + "\n"));
-                    for (Component item: indentation)
-                        ret.append(item);
-                }
-                ret.append(Component.text(lines[lines.length - 1]));
-
-                // Set curLine to last line (excluding indentation)
-                curLine.delete(0, curLine.length());
-                curLine.append(lines[lines.length - 1]);
+                                               Indentation indentation,
+                                               LineWidth line,
+                                               boolean bold) {
+        int lastIndex = text.lastIndexOf('\n');
+        if (lastIndex < 0) {
+            // No newlines, the text continues the current line
+            int width = GlyphWidths.width(text, bold);
+            line.width += width;
+            line.fullWidth += width;
+            return Component.text(text);
+        }
 
-                // Include indentation in full line
-                fullCurLine.delete(0, fullCurLine.length());
-                fullCurLine.append(curLine);
-                for (Component item: indentation)
-                    fullCurLine.append(PlainComponentSerializer.plain().serialize(item));
+        // The current line is now the last line, after any indentation
+        line.width = GlyphWidths.width(text.substring(lastIndex + 1), bold);
+        line.fullWidth = line.width;
+        if (indentation == null)
+            return Component.text(text);
+        line.fullWidth += indentation.width(bold);
 
-                return ret.build();
-            }
-
-            // No newlines, append the text to curLine
-            curLine.append(text);
-            fullCurLine.append(text);
-        } else {
-            // Check for newlines, set curLine to last line
-            int lastIndex = text.lastIndexOf("\n");
-            if (lastIndex < 0) {
-                curLine.append(text);
-                fullCurLine.append(text);
-            } else {
-                curLine.delete(0, curLine.length());
-                curLine.append(text.substring(lastIndex + 1, text.length()));
-                fullCurLine.delete(0, curLine.length());
-                fullCurLine.append(curLine);
-            }
+        // Split after newlines and inject indentation
+        Component[] items = indentation.toArray();
+        TextComponent.Builder ret = Component.text();
+        int start = 0;
+        for (int end = text.indexOf('\n'); end >= 0; end = text.indexOf('\n', start)) {
+            ret.append(Component.text(text.substring(start, end + 1)));
+            for (Component item: items)
+                ret.append(item);
+            start = end + 1;
         }
-        // Set curLine to last line
-        return Component.text(text);
+        ret.append(Component.text(text.substring(start)));
+        return ret.build();
     }
 
     /**
@@ -299,7 +336,7 @@ public class IntermediateJSON {
      */
     private static Component quoteToComponent(boolean obfuscated) {
         TextComponent.Builder quote = Component.text();
-        quote.content("| ");
+        quote.content(QUOTE);
         quote.color(NamedTextColor.GRAY);
         if (!obfuscated)
             quote.decoration(TextDecoration.OBFUSCATED, false);
@@ -358,7 +395,7 @@ public class IntermediateJSON {
             newObj.decorate(TextDecoration.OBFUSCATED);
             obfuscated = true;
             if (obj.has("content")) {
-                Component hoverText = toComponent(obj.get("content"), null, depth, bulletDepth, new StringBuilder(), new StringBuilder(), textWidthHover, false);
+                Component hoverText = toComponent(obj.get("content"), null, depth, bulletDepth, new LineWidth(), textWidthHover, false, false);
                 newObj.hoverEvent(HoverEvent.showText(hoverText));
             }
         }
@@ -423,19 +460,29 @@ public class IntermediateJSON {
                 }
             }
         }
-        if (user != null) {
-            String displayName = user.optString("displayName");
-            newObj.insertion(displayName);
-
-            String subTitleText = "Shift-click to paste " + displayName + " to the chat";
-            if (uuid != null)
-                subTitleText = "Click to whisper to " + displayName + "\n" + subTitleText;
-
-            TextComponent.Builder hoverValue = Component.text();
-            hoverValue.append(Component.text(displayName + " (" + user.optString("mxid") + ")\n"));
-            hoverValue.append(Component.text(subTitleText, NamedTextColor.GOLD, TextDecoration.ITALIC));
-            newObj.hoverEvent(HoverEvent.showText(hoverValue.build()));
-        }
+        if (user != null)
+            userToComponent(user.optString("displayName"), user.optString("mxid"), uuid, newObj);
+    }
+
+    /**
+     * Style a TextComponent for a mention of a Matrix user.
+     * @param displayName String     The user's display name.
+     * @param mxid        String     The user's Matrix ID.
+     * @param uuid        UUID       The user's Minecraft UUID if they are a bridged player, or null.
+     * @param newObj      Builder    The TextComponent to build.
+     */
+    private static void userToComponent(String displayName, String mxid, UUID uuid,
+                                        TextComponent.Builder newObj) {
+        newObj.insertion(displayName);
+
+        String subTitleText = "Shift-click to paste " + displayName + " to the chat";
+        if (uuid != null)
+            subTitleText = "Click to whisper to " + displayName + "\n" + subTitleText;
+
+        TextComponent.Builder hoverValue = Component.text();
+        hoverValue.append(Component.text(displayName + " (" + mxid + ")\n"));
+        hoverValue.append(Component.text(subTitleText, NamedTextColor.GOLD, TextDecoration.ITALIC));
+        newObj.hoverEvent(HoverEvent.showText(hoverValue.build()));
     }
 
     /**
@@ -481,21 +528,22 @@ public class IntermediateJSON {
     /**
      * Style a TextComponent based on intermediate JSON horizontalRule object.
      * @param obj         JSONObject    Intermediate JSON horizontalRule object.
-     * @param fullCurLine StringBuilder Current line of text (incl. indentation).
+     * @param fullWidth   int           Width of the current line (incl. indentation).
      * @param maxWidth    int           Max line width.
+     * @param bold        boolean       Whether the rule is bold.
      * @param newObj      Builder       The TextComponent to build.
      */
     private static void hrToComponent(JSONObject obj,
-                                      StringBuilder fullCurLine,
+                                      int fullWidth,
                                       int maxWidth,
+                                      boolean bold,
                                       TextComponent.Builder newObj) {
         // Line to max width
-        int width = indentWidth(fullCurLine.toString());
-        width = maxWidth - width;
+        int width = maxWidth - fullWidth;
         if (width < 6*3)
             width = 6*3;
         newObj.color(NamedTextColor.GRAY);
-        newObj.content(indentTo("-", width, false));
+        newObj.content(indentTo("-", width, false, bold));
         newObj.decorate(TextDecoration.STRIKETHROUGH);
     }
 
@@ -528,41 +576,15 @@ public class IntermediateJSON {
 
     // Helpers for using whitespace to align multiline text
 
-    private static final String[] charWidths = {
-        /* 2 */ "!.,:;i|",
-        /* 3 */ "'`l",
-        /* 4 */ " I[]t\u25e6\u2022",
-        /* 5 */ "\"()*<>fk{}",
-        /* 6 */ "", // default
-        /* 7 */ "@~",
-    };
-
-    private static int indentWidth(String str) {
-        int width = 0;
-        for (int i = 0; i < str.length(); ++i) {
-            int thisWidth = 6;
-            for (int j = 0; j < charWidths.length; ++j) {
-                if (charWidths[j].indexOf(str.charAt(i)) >= 0) {
-                    thisWidth = 2 + j;
-                    break;
-                }
-            }
-            width += thisWidth;
-        }
-        return width;
-    }
-
-    private static String indentTo(String with, int width, boolean mid) {
-        int withWidth = indentWidth(with);
+    // The padding is drawn in the style around it, so is as wide as bold
+    // text when that is
+    private static String indentTo(String with, int width, boolean mid, boolean bold) {
+        int withWidth = GlyphWidths.width(with, bold);
         if (mid)
             width += withWidth / 2;
         return new String(new char[width / withWidth]).replace("\0", with);
     }
 
-    private static String indentFor(String str, String with) {
-        return indentTo(with, indentWidth(str), true);
-    }
-
     private static String toAlphabeticRadix(int num) {
         if (num < 1)
             return String.format("%d", num);
@@ -577,4 +599,140 @@ public class IntermediateJSON {
         str.reverse();
         return str.toString();
     }
+
+    /**
+     * Width of the current line of text so far (scaled pixels), for lining
+     * things up with it.
+     */
+    private static final class LineWidth {
+        // Excluding indentation
+        int width;
+        // Including indentation
+        int fullWidth;
+    }
+
+    /**
+     * An inline block, which indents the lines of its content to line up
+     * with where it starts, as the body of a message is after the sender.
+     */
+    public static final class Inline {
+        final Object content;
+
+        public Inline(Object content) {
+            this.content = content;
+        }
+    }
+
+    /**
+     * A mention of a Matrix user with their display name, as for the
+     * sender of a message.
+     */
+    public static final class UserMention {
+        final MatrixUser user;
+
+        public UserMention(MatrixUser user) {
+            this.user = user;
+        }
+    }
+
+    /**
+     * Indentation to be inserted after each newline, shared by nested blocks
+     * (each only adds its own to the end of its parent's).
+     */
+    private static final class Indentation {
+        final Indentation parent;
+        final Component component;
+        // Number of components, including the parent's
+        final int size;
+        // Total width of the components, plain and bold
+        final int width;
+        final int boldWidth;
+
+        Indentation(Indentation parent, Component component, String text) {
+            this.parent = parent;
+            this.component = component;
+            this.size = parent == null ? 1 : parent.size + 1;
+            this.width = (parent == null ? 0 : parent.width) + GlyphWidths.width(text, false);
+            this.boldWidth = (parent == null ? 0 : parent.boldWidth) + GlyphWidths.width(text, true);
+        }
+
+        int width(boolean bold) {
+            return bold ? boldWidth : width;
+        }
+
+        /**
+         * Get the components in the order they are inserted.
+         */
+        Component[] toArray() {
+            Component[] items = new Component[size];
+            for (Indentation i = this; i != null; i = i.parent)
+                items[i.size - 1] = i.component;
+            return items;
+        }
+    }
+
+    /**
+     * An array or object part way through being converted.
+     */
+    private static final class Frame {
+        // Children of an array, or the content of an object
+        private final Iterator<Object> children;
+        // The component children are appended to
+        final TextComponent.Builder builder;
+        // Component to prefix it with, e.g. a bullet
+        private final Component indentNow;
+        // State for converting the children
+        final Indentation indentation;
+        final int depth;
+        final int bulletDepth;
+        final boolean obfuscated;
+        final boolean bold;
+
+        Frame(JSONArray arr, TextComponent.Builder builder, Component indentNow,
+              Indentation indentation, int depth, int bulletDepth, boolean obfuscated, boolean bold) {
+            this(arr.iterator(), builder, indentNow, indentation, depth, bulletDepth, obfuscated, bold);
+        }
+
+        Frame(JSONObject obj, TextComponent.Builder builder, Component indentNow,
+              Indentation indentation, int depth, int bulletDepth, boolean obfuscated, boolean bold) {
+            this(obj.has("content") ? Collections.singletonList(obj.get("content")).iterator()
+                                    : Collections.emptyIterator(),
+                 builder, indentNow, indentation, depth, bulletDepth, obfuscated, bold);
+        }
+
+        Frame(Iterator<Object> children, TextComponent.Builder builder, Component indentNow,
+                      Indentation indentation, int depth, int bulletDepth, boolean obfuscated, boolean bold) {
+            this.children = children;
+            this.builder = builder;
+            this.indentNow = indentNow;
+            this.indentation = indentation;
+            this.depth = depth;
+            this.bulletDepth = bulletDepth;
+            this.obfuscated = obfuscated;
+            this.bold = bold;
+        }
+
+        /**
+         * Get the next child to convert.
+         * @return Object The child, or null if there are no more
+         */
+        Object nextChild() {
+            while (children.hasNext()) {
+                Object child = children.next();
+                if (child != null)
+                    return child;
+            }
+            return null;
+        }
+
+        Component build() {
+            if (indentNow != null) {
+                TextComponent.Builder indented = Component.text();
+                indented.append(indentNow);
+                indented.append(builder.build());
+                return indented.build();
+            }
+            return builder.build();
+        }
+    }
 }
@@ -11,6 +11,16 @@ public class MCDeath extends MCEvent {
         this.message = message;
     }
 
+    @Override
+    public String getType() {
+        return "player.death";
+    }
+
+    @Override
+    public String getEndpoint() {
+        return "/player/death";
+    }
+
     @Override
     public JSONObject toJSON() {
         return new JSONObject()
@@ -2,10 +2,33 @@ package dev.dhdf.polo.types;
 
 import org.json.JSONObject;
 
+import java.nio.charset.StandardCharsets;
+
 public abstract class MCEvent {
+    /**
+     * Get the type of the event when sent in a batch, e.g. player.join
+     * @return String Event type
+     */
+    public abstract String getType();
+
+    /**
+     * Get the Marco endpoint the event is posted to on its own, e.g.
+     * /player/join
+     * @return String Endpoint path
+     */
+    public abstract String getEndpoint();
+
     public abstract JSONObject toJSON();
 
+    /**
+     * Get the event as UTF-8 JSON, as posted to its own endpoint.
+     * @return byte[] The JSON
+     */
+    public byte[] toBytes() {
+        return EventCodec.get().encode(this);
+    }
+
     public String toString() {
-        return toJSON().toString();
+        return new String(toBytes(), StandardCharsets.UTF_8);
     }
 }
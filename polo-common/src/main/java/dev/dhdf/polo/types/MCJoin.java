@@ -9,6 +9,16 @@ public class MCJoin extends MCEvent {
         this.player = player;
     }
 
+    @Override
+    public String getType() {
+        return "player.join";
+    }
+
+    @Override
+    public String getEndpoint() {
+        return "/player/join";
+    }
+
     @Override
     public JSONObject toJSON() {
         return new JSONObject()
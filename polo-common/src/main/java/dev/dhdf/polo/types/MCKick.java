@@ -11,6 +11,16 @@ public class MCKick extends MCEvent {
         this.reason = reason;
     }
 
+    @Override
+    public String getType() {
+        return "player.kick";
+    }
+
+    @Override
+    public String getEndpoint() {
+        return "/player/kick";
+    }
+
     @Override
     public JSONObject toJSON() {
         return new JSONObject()
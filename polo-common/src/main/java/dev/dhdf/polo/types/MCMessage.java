@@ -11,6 +11,16 @@ public class MCMessage extends MCEvent {
         this.message = message;
     }
 
+    @Override
+    public String getType() {
+        return "chat";
+    }
+
+    @Override
+    public String getEndpoint() {
+        return "/chat";
+    }
+
     @Override
     public JSONObject toJSON() {
         return new JSONObject()
@@ -9,6 +9,16 @@ public class MCQuit extends MCEvent {
         this.player = player;
     }
 
+    @Override
+    public String getType() {
+        return "player.quit";
+    }
+
+    @Override
+    public String getEndpoint() {
+        return "/player/quit";
+    }
+
     @Override
     public JSONObject toJSON() {
         return new JSONObject()
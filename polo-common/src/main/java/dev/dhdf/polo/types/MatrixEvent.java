@@ -0,0 +1,12 @@
+package dev.dhdf.polo.types;
+
+/**
+ * An event from the Matrix room, decoded from what Marco sends.
+ */
+public abstract class MatrixEvent {
+    public final MatrixUser sender;
+
+    protected MatrixEvent(MatrixUser sender) {
+        this.sender = sender;
+    }
+}
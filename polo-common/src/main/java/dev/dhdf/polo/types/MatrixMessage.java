@@ -0,0 +1,98 @@
+package dev.dhdf.polo.types;
+
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A message in the Matrix room.
+ *
+ * It is also the input to IntermediateJSON for rendering the message, with
+ * the sender prefixed to the body, so nothing needs to be wrapped in new
+ * JSON objects for it.
+ */
+public final class MatrixMessage extends MatrixEvent {
+    public enum Kind {
+        TEXT("message.text"),
+        EMOTE("message.emote"),
+        ANNOUNCE("message.announce");
+
+        public final String type;
+
+        Kind(String type) {
+            this.type = type;
+        }
+
+        /**
+         * Get the kind of message from its event type.
+         * @param type Event type, e.g. message.text
+         * @return Kind The kind
+         * @throws IllegalArgumentException if it isn't a message type
+         */
+        public static Kind fromType(String type) {
+            for (Kind kind : values())
+                if (kind.type.equals(type))
+                    return kind;
+            throw new IllegalArgumentException("Not a message type: " + type);
+        }
+    }
+
+    public final Kind kind;
+    // Plain text body
+    public final String body;
+    // Intermediate JSON formatted body, or null if there is only plain text
+    public final Object bodyJson;
+    // The parts to render, the sender's prefix then the body
+    final List<Object> parts;
+
+    public MatrixMessage(Kind kind, MatrixUser sender, String body, Object bodyJson) {
+        super(sender);
+        this.kind = kind;
+        this.body = body;
+        this.bodyJson = bodyJson;
+
+        IntermediateJSON.Inline content = new IntermediateJSON.Inline(bodyJson != null ? bodyJson : body);
+        IntermediateJSON.UserMention mention = new IntermediateJSON.UserMention(sender);
+        switch (kind) {
+        case TEXT:
+            this.parts = Collections.unmodifiableList(Arrays.asList("<", mention, "> ", content));
+            break;
+        case EMOTE:
+            this.parts = Collections.unmodifiableList(Arrays.asList(" * <", mention, "> ", content));
+            break;
+        default:
+            this.parts = Collections.unmodifiableList(Arrays.asList("[Server] ", content));
+            break;
+        }
+    }
+
+    /**
+     * Decode a message event from Marco.
+     * @param type  Event type, e.g. message.text
+     * @param event The event
+     * @return MatrixMessage The message
+     */
+    public static MatrixMessage fromJSON(String type, JSONObject event) {
+        return new MatrixMessage(Kind.fromType(type),
+                                 MatrixUser.fromJSON(event.getJSONObject("sender")),
+                                 event.getString("body"),
+                                 event.opt("bodyJson"));
+    }
+
+    /**
+     * Get the message as plain text, with the sender.
+     * @return String The message
+     */
+    public String getText() {
+        switch (kind) {
+        case TEXT:
+            return "<" + sender.displayName + "> " + body;
+        case EMOTE:
+            return " * <" + sender.displayName + "> " + body;
+        default:
+            return "[Server]" + body;
+        }
+    }
+}
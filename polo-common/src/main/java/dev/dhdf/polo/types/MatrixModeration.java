@@ -0,0 +1,63 @@
+package dev.dhdf.polo.types;
+
+import org.json.JSONObject;
+
+import java.util.UUID;
+
+/**
+ * A kick, ban or unban of a Minecraft player from the Matrix room.
+ */
+public final class MatrixModeration extends MatrixEvent {
+    public enum Action {
+        KICK("player.kick"),
+        BAN("player.ban"),
+        UNBAN("player.unban");
+
+        public final String type;
+
+        Action(String type) {
+            this.type = type;
+        }
+
+        /**
+         * Get the action from its event type.
+         * @param type Event type, e.g. player.kick
+         * @return Action The action
+         * @throws IllegalArgumentException if it isn't a moderation type
+         */
+        public static Action fromType(String type) {
+            for (Action action : values())
+                if (action.type.equals(type))
+                    return action;
+            throw new IllegalArgumentException("Not a moderation type: " + type);
+        }
+    }
+
+    public final Action action;
+    public final UUID player;
+    // Reason given, or null if there was none
+    public final String reason;
+
+    public MatrixModeration(Action action, MatrixUser sender, UUID player, String reason) {
+        super(sender);
+        this.action = action;
+        this.player = player;
+        this.reason = reason;
+    }
+
+    /**
+     * Decode a kick, ban or unban event from Marco.
+     * @param type  Event type, e.g. player.kick
+     * @param event The event
+     * @return MatrixModeration The event
+     */
+    public static MatrixModeration fromJSON(String type, JSONObject event) {
+        Action action = Action.fromType(type);
+        // reason is optional, and unbans don't have one
+        String reason = null;
+        if (action != Action.UNBAN && event.has("reason"))
+            reason = event.getString("reason");
+        UUID player = PoloPlayer.uuidFromString(event.getJSONObject("player").getString("uuid"));
+        return new MatrixModeration(action, MatrixUser.fromJSON(event.getJSONObject("sender")), player, reason);
+    }
+}
@@ -0,0 +1,25 @@
+package dev.dhdf.polo.types;
+
+import org.json.JSONObject;
+
+/**
+ * A Matrix user, as Marco describes the sender of an event.
+ */
+public final class MatrixUser {
+    public final String displayName;
+    public final String mxid;
+
+    public MatrixUser(String displayName, String mxid) {
+        this.displayName = displayName;
+        this.mxid = mxid;
+    }
+
+    /**
+     * Read a user from Marco.
+     * @param json The user, with at least a displayName
+     * @return MatrixUser The user
+     */
+    public static MatrixUser fromJSON(JSONObject json) {
+        return new MatrixUser(json.getString("displayName"), json.optString("mxid"));
+    }
+}
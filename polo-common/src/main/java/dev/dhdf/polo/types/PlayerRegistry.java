@@ -0,0 +1,97 @@
+package dev.dhdf.polo.types;
+
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+
+/**
+ * A snapshot of each online player as a PoloPlayer, kept up to date by the
+ * listeners when players join, change nickname and quit, so that chat and
+ * other events only need to look the player up. Events from the same player
+ * share one instance, and with it the JSON EventCodec has cached for it.
+ *
+ * Reads don't lock, so the registry can be used from async chat threads.
+ * A snapshot is passed over if the player's name or display name no longer
+ * match it (other plugins may change a display name without an event).
+ */
+public class PlayerRegistry {
+    // Minecraft formatting codes, e.g. \u00a7a
+    private static final Pattern FORMATTING = Pattern.compile("\u00a7.");
+
+    private final ConcurrentHashMap<UUID, Entry> players = new ConcurrentHashMap<>();
+
+    /**
+     * Strip Minecraft formatting codes from a display name.
+     * @param displayName The display name
+     * @return String The display name without formatting codes
+     */
+    public static String stripFormatting(String displayName) {
+        if (displayName == null || displayName.indexOf('\u00a7') < 0)
+            return displayName;
+        return FORMATTING.matcher(displayName).replaceAll("");
+    }
+
+    /**
+     * Get a player's snapshot.
+     * @param uuid Player UUID
+     * @return PoloPlayer The player, or null if they aren't registered
+     */
+    public PoloPlayer get(UUID uuid) {
+        Entry entry = players.get(uuid);
+        return entry == null ? null : entry.player;
+    }
+
+    /**
+     * Get a player's snapshot, if it is still up to date.
+     * @param uuid        Player UUID
+     * @param name        Current player name
+     * @param displayName Current display name, as the server has it
+     * @return PoloPlayer The player, or null if there is none or it is out
+     *                    of date
+     */
+    public PoloPlayer get(UUID uuid, String name, String displayName) {
+        Entry entry = players.get(uuid);
+        if (entry == null || !entry.player.name.equals(name) || !Objects.equals(entry.displayName, displayName))
+            return null;
+        return entry.player;
+    }
+
+    /**
+     * Take a new snapshot of a player, replacing any previous one.
+     * @param uuid        Player UUID
+     * @param name        Player name
+     * @param displayName Display name as the server has it, formatting codes
+     *                    are stripped for the snapshot
+     * @param texture     Base64 textures property, may be null
+     * @return PoloPlayer The new snapshot
+     */
+    public PoloPlayer update(UUID uuid, String name, String displayName, String texture) {
+        PoloPlayer player = new PoloPlayer(name, uuid, stripFormatting(displayName), texture);
+        players.put(uuid, new Entry(displayName, player));
+        return player;
+    }
+
+    /**
+     * Forget a player, e.g. when they leave.
+     * @param uuid Player UUID
+     */
+    public void remove(UUID uuid) {
+        players.remove(uuid);
+    }
+
+    public int size() {
+        return players.size();
+    }
+
+    private static class Entry {
+        final String displayName;
+        final PoloPlayer player;
+
+        Entry(String displayName, PoloPlayer player) {
+            this.displayName = displayName;
+            this.player = player;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package dev.dhdf.polo.types;
 
+import dev.dhdf.polo.util.UuidCodec;
 import org.json.JSONObject;
 
 import java.util.UUID;
@@ -9,10 +10,13 @@ public class PoloPlayer {
     public final String uuid;
     public final String displayName;
     public final String texture;
+    // The player as UTF-8 JSON, written by EventCodec the first time it is
+    // needed and spliced into every later event from the same player
+    volatile byte[] json;
 
     public PoloPlayer(String name, UUID uuid, String displayName, String texture) {
         this.name = name;
-        this.uuid = uuid.toString().replace("-", "");
+        this.uuid = UuidCodec.toString(uuid);
         this.displayName = displayName;
         this.texture = texture;
     }
@@ -21,17 +25,14 @@ public class PoloPlayer {
      * Read a UUID from a string that has had the dashes removed.
      *
      * Read a UUID from the appservice, which will have originated from
-     * PoloPlayer, which removes the dashes. We have to add them back in before
-     * converting to a UUID object.
+     * PoloPlayer, which removes the dashes. Dashed UUIDs are accepted too.
      *
      * @param uuid UUID string without dashes.
      * @return UUID.
+     * @throws IllegalArgumentException if it isn't a valid UUID
      */
     public static UUID uuidFromString(String uuid) {
-        uuid = uuid.replaceFirst(
-                "(\\p{XDigit}{8})(\\p{XDigit}{4})(\\p{XDigit}{4})(\\p{XDigit}{4})(\\p{XDigit}+)",
-                "$1-$2-$3-$4-$5");
-        return java.util.UUID.fromString(uuid);
+        return UuidCodec.fromString(uuid);
     }
 
     public JSONObject toJSON() {
@@ -0,0 +1,231 @@
+package dev.dhdf.polo.types;
+
+import dev.dhdf.polo.metrics.Metrics;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Recently rendered messages, so that repeated intermediate JSON (bot status
+ * lines, announcements and the like) is only rendered once.
+ *
+ * Messages are keyed by a 128 bit hash of their canonical JSON, i.e. with
+ * object keys sorted. A MatrixMessage is hashed along with its sender, so
+ * the same text from different senders is cached separately. The
+ * least recently used messages are evicted once there are more than
+ * maxEntries or their total weight goes over maxWeight.
+ */
+public class RenderCache {
+    // Deeper JSON than this is rendered without being cached
+    private static final int MAX_DEPTH = 1000;
+
+    private final int maxEntries;
+    private final long maxWeight;
+    private final LinkedHashMap<Key, RenderedMessage> messages = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight;
+
+    // Statistics, guarded by this
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Constructor.
+     * @param maxEntries Most messages to keep
+     * @param maxWeight  Most legacy text to keep across all messages (chars)
+     */
+    public RenderCache(int maxEntries, long maxWeight) {
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        this.weight = 0;
+    }
+
+    /**
+     * Get a message rendered, from the cache if it has been seen recently.
+     * @param json Intermediate JSON formatted message data from appservice
+     * @return RenderedMessage The rendered message
+     */
+    public RenderedMessage get(Object json) {
+        Hasher hasher = new Hasher();
+        if (!hasher.hash(json, 0)) {
+            synchronized (this) {
+                ++misses;
+            }
+            return render(json);
+        }
+        Key key = hasher.toKey();
+
+        synchronized (this) {
+            RenderedMessage message = messages.get(key);
+            if (message != null) {
+                ++hits;
+                return message;
+            }
+            ++misses;
+        }
+
+        // Render outside the lock, racing threads at worst render it twice
+        RenderedMessage message = render(json);
+        int messageWeight = message.getWeight();
+        if (messageWeight > maxWeight)
+            return message;
+
+        synchronized (this) {
+            RenderedMessage old = messages.put(key, message);
+            if (old != null)
+                weight -= old.getWeight();
+            weight += messageWeight;
+
+            Iterator<Map.Entry<Key, RenderedMessage>> it = messages.entrySet().iterator();
+            while ((messages.size() > maxEntries || weight > maxWeight) && it.hasNext()) {
+                weight -= it.next().getValue().getWeight();
+                it.remove();
+                ++evictions;
+            }
+        }
+        return message;
+    }
+
+    private static RenderedMessage render(Object json) {
+        long start = System.nanoTime();
+        RenderedMessage message = new RenderedMessage(new IntermediateJSON(json));
+        Metrics.get().histogram("polo_render_seconds").recordSince(start);
+        return message;
+    }
+
+    /**
+     * Report the statistics of the cache in the metrics.
+     * @param metrics The metrics
+     */
+    public void addGauges(Metrics metrics) {
+        metrics.gauge("polo_render_cache_hits", this::getHits);
+        metrics.gauge("polo_render_cache_misses", this::getMisses);
+        metrics.gauge("polo_render_cache_evictions", this::getEvictions);
+        metrics.gauge("polo_render_cache_size", this::size);
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized int size() {
+        return messages.size();
+    }
+
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    /**
+     * Hashes JSON in canonical form, with two independent 64 bit hashes.
+     */
+    private static class Hasher {
+        private long h1 = 0xcbf29ce484222325L;
+        private long h2 = 0x6a09e667f3bcc909L;
+
+        /**
+         * Hash a JSON value.
+         * @return boolean False if it is too deep to be worth caching
+         */
+        boolean hash(Object json, int depth) {
+            if (++depth > MAX_DEPTH)
+                return false;
+
+            if (json instanceof String) {
+                update('s');
+                update((String) json);
+            } else if (json instanceof JSONArray) {
+                JSONArray arr = (JSONArray) json;
+                update('[');
+                update(arr.length());
+                for (Object obj : arr)
+                    if (!hash(obj, depth))
+                        return false;
+            } else if (json instanceof JSONObject) {
+                JSONObject obj = (JSONObject) json;
+                String[] keys = obj.keySet().toArray(new String[0]);
+                Arrays.sort(keys);
+                update('{');
+                update(keys.length);
+                for (String key : keys) {
+                    update(key);
+                    if (!hash(obj.opt(key), depth))
+                        return false;
+                }
+            } else if (json instanceof MatrixMessage) {
+                MatrixMessage message = (MatrixMessage) json;
+                update('m');
+                update(message.parts.size());
+                for (Object part : message.parts)
+                    if (!hash(part, depth))
+                        return false;
+            } else if (json instanceof IntermediateJSON.UserMention) {
+                MatrixUser user = ((IntermediateJSON.UserMention) json).user;
+                update('u');
+                update(user.displayName);
+                update(user.mxid);
+            } else if (json instanceof IntermediateJSON.Inline) {
+                update('i');
+                if (!hash(((IntermediateJSON.Inline) json).content, depth))
+                    return false;
+            } else if (json == null || JSONObject.NULL.equals(json)) {
+                update('n');
+            } else {
+                // Numbers and booleans
+                update('v');
+                update(json.toString());
+            }
+            return true;
+        }
+
+        private void update(String str) {
+            update(str.length());
+            for (int i = 0; i < str.length(); ++i)
+                update(str.charAt(i));
+        }
+
+        private void update(int value) {
+            h1 = (h1 ^ value) * 0x100000001b3L;
+            h2 = Long.rotateLeft(h2 + value * 0xc2b2ae3d27d4eb4fL, 31) * 0x9e3779b97f4a7c15L;
+        }
+
+        Key toKey() {
+            return new Key(h1, h2);
+        }
+    }
+
+    private static final class Key {
+        final long h1;
+        final long h2;
+
+        Key(long h1, long h2) {
+            this.h1 = h1;
+            this.h2 = h2;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return h1 == other.h1 && h2 == other.h2;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (h1 ^ h1 >>> 32);
+        }
+    }
+}
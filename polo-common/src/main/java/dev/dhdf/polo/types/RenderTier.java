@@ -0,0 +1,79 @@
+package dev.dhdf.polo.types;
+
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.event.HoverEvent;
+import net.kyori.adventure.text.format.NamedTextColor;
+import net.kyori.adventure.text.format.Style;
+import net.kyori.adventure.text.format.TextColor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What a client can display, from everything a current Java client can down
+ * to legacy formatting codes, e.g. for Bedrock players coming through a
+ * gateway.
+ */
+public enum RenderTier {
+    /**
+     * RGB colours, fonts, hover and click events.
+     */
+    FULL,
+    /**
+     * Only the 16 named colours and the default font, e.g. for older
+     * clients coming through a version translator.
+     */
+    NAMED_COLOUR,
+    /**
+     * Named colours and formatting only, as legacy formatting codes can
+     * represent them, with no hover or click events.
+     */
+    LEGACY;
+
+    /**
+     * Reduce a component to what this tier can display.
+     * @param component The component
+     * @return Component The component, or a reduced copy of it
+     */
+    public Component apply(Component component) {
+        if (this == FULL)
+            return component;
+
+        Style style = component.style();
+        Style reduced = style;
+        TextColor color = style.color();
+        if (color != null && !(color instanceof NamedTextColor))
+            reduced = reduced.color(NamedTextColor.nearestTo(color));
+        if (style.font() != null)
+            reduced = reduced.font(null);
+        if (this == LEGACY) {
+            if (style.hoverEvent() != null)
+                reduced = reduced.hoverEvent(null);
+            if (style.clickEvent() != null)
+                reduced = reduced.clickEvent(null);
+        } else if (style.hoverEvent() != null && style.hoverEvent().action() == HoverEvent.Action.SHOW_TEXT) {
+            Component text = (Component) style.hoverEvent().value();
+            Component reducedText = apply(text);
+            if (reducedText != text)
+                reduced = reduced.hoverEvent(HoverEvent.showText(reducedText));
+        }
+
+        List<Component> children = component.children();
+        List<Component> reducedChildren = null;
+        for (int i = 0; i < children.size(); ++i) {
+            Component child = children.get(i);
+            Component reducedChild = apply(child);
+            if (reducedChild != child && reducedChildren == null)
+                reducedChildren = new ArrayList<>(children.subList(0, i));
+            if (reducedChildren != null)
+                reducedChildren.add(reducedChild);
+        }
+
+        // Only copy what has changed
+        if (reduced != style)
+            component = component.style(reduced);
+        if (reducedChildren != null)
+            component = component.children(reducedChildren);
+        return component;
+    }
+}
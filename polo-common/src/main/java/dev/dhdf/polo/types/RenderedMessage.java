@@ -0,0 +1,148 @@
+package dev.dhdf.polo.types;
+
+import net.kyori.adventure.text.Component;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * The result of rendering intermediate JSON, all worked out up front so that
+ * it can be cached and shared between threads (components are immutable).
+ *
+ * Platforms can also keep forms of the message derived from these, e.g.
+ * serialised ready to send, so they are only made once per message.
+ */
+public final class RenderedMessage {
+    // Keys for the variants of the components kept with the message
+    private enum Variant {
+        FULL, FULL_HIGHLIGHT,
+        NAMED_COLOUR, NAMED_COLOUR_HIGHLIGHT,
+        LEGACY, LEGACY_HIGHLIGHT;
+
+        static Variant of(RenderTier tier, boolean highlight) {
+            return values()[tier.ordinal() * 2 + (highlight ? 1 : 0)];
+        }
+    }
+
+    private final Component component;
+    private final Component componentHighlight;
+    private final String legacy;
+    private final String legacyHighlight;
+    private final Set<UUID> mentions;
+    private final boolean roomMention;
+    // Platform specific forms of the message, made on first use
+    private final ConcurrentHashMap<Object, Object> payloads = new ConcurrentHashMap<>(4);
+
+    /**
+     * Render intermediate JSON.
+     * @param intermediate The message to render
+     */
+    public RenderedMessage(IntermediateJSON intermediate) {
+        this.component = intermediate.getComponent();
+        this.componentHighlight = intermediate.getComponentHighlight();
+        this.legacy = intermediate.getLegacy();
+        this.legacyHighlight = intermediate.getLegacyHighlight();
+        this.mentions = Collections.unmodifiableSet(new HashSet<>(intermediate.getMentions()));
+        this.roomMention = intermediate.getRoomMention();
+    }
+
+    /**
+     * Get the equivalent text component.
+     * @return Component Text component.
+     */
+    public Component getComponent() {
+        return component;
+    }
+
+    /**
+     * Get the equivalent text component for a highlighted message.
+     * @return Component Text component.
+     */
+    public Component getComponentHighlight() {
+        return componentHighlight;
+    }
+
+    /**
+     * Get the equivalent text component for clients of a tier, reduced to
+     * what they can display the first time it is asked for.
+     * @param tier What the client can display
+     * @return Component Text component.
+     */
+    public Component getComponent(RenderTier tier) {
+        if (tier == RenderTier.FULL)
+            return component;
+        return getPayload(Variant.of(tier, false), () -> tier.apply(component));
+    }
+
+    /**
+     * Get the equivalent text component for a highlighted message for
+     * clients of a tier.
+     * @param tier What the client can display
+     * @return Component Text component.
+     */
+    public Component getComponentHighlight(RenderTier tier) {
+        if (tier == RenderTier.FULL)
+            return componentHighlight;
+        return getPayload(Variant.of(tier, true), () -> tier.apply(componentHighlight));
+    }
+
+    /**
+     * Get the equivalent legacy format coded string.
+     * @return String Minecraft legacy formatting coded string
+     */
+    public String getLegacy() {
+        return legacy;
+    }
+
+    /**
+     * Get the equivalent legacy format coded string for a highlighted message.
+     * @return String Minecraft legacy formatting coded string
+     */
+    public String getLegacyHighlight() {
+        return legacyHighlight;
+    }
+
+    /**
+     * Get a set of player UUIDs mentioned in the message.
+     * @return Set<UUID> Unmodifiable set of player UUIDs
+     */
+    public Set<UUID> getMentions() {
+        return mentions;
+    }
+
+    /**
+     * Get whether the entire room was legitimately mentioned in the message.
+     * @return boolean True if room was mentioned
+     */
+    public boolean getRoomMention() {
+        return roomMention;
+    }
+
+    /**
+     * Get a platform specific form of the message, making it the first time
+     * it is asked for.
+     * @param key  Identifies the form, e.g. an enum constant
+     * @param make Makes it from this message, must not return null
+     * @return T The form of the message
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getPayload(Object key, Supplier<T> make) {
+        Object payload = payloads.get(key);
+        if (payload == null)
+            payload = payloads.computeIfAbsent(key, k -> make.get());
+        return (T) payload;
+    }
+
+    /**
+     * Roughly how much memory the message holds on to, in chars of legacy
+     * text, for bounding a cache of them.
+     * @return int The weight
+     */
+    int getWeight() {
+        return legacy.length() + legacyHighlight.length();
+    }
+}
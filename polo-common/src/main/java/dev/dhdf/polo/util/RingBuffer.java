@@ -0,0 +1,109 @@
+package dev.dhdf.polo.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * A bounded lock-free queue for many producers and consumers.
+ *
+ * Each slot carries a sequence number saying whether it is ready to be
+ * written or read on the current lap around the buffer, so producers and
+ * consumers only ever contend on a single compare-and-set of their own
+ * position (D. Vyukov's bounded MPMC queue).
+ *
+ * @param <E> Type of element
+ */
+public class RingBuffer<E> {
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param capacity Minimum number of elements, rounded up to a power of 2
+     */
+    public RingBuffer(int capacity) {
+        int size = 1;
+        while (size < capacity)
+            size <<= 1;
+        this.elements = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+        for (int i = 0; i < size; ++i)
+            sequences.set(i, i);
+    }
+
+    /**
+     * Add an element to the tail of the queue.
+     * @param element The element
+     * @return boolean False if the queue is full
+     */
+    public boolean offer(E element) {
+        long pos = tail.get();
+        for (;;) {
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    elements.lazySet(index, element);
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                // The slot is still waiting to be read on the previous lap
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Remove the element at the head of the queue.
+     * @return E The element, or null if the queue is empty
+     */
+    public E poll() {
+        long pos = head.get();
+        for (;;) {
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    E element = elements.get(index);
+                    elements.lazySet(index, null);
+                    // Ready to be written on the next lap
+                    sequences.set(index, pos + mask + 1);
+                    return element;
+                }
+                pos = head.get();
+            } else if (diff < 0) {
+                // Nothing has been written to the slot on this lap yet
+                return null;
+            } else {
+                pos = head.get();
+            }
+        }
+    }
+
+    /**
+     * Get the approximate number of elements in the queue.
+     * @return int Number of elements
+     */
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+}
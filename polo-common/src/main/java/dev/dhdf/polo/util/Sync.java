@@ -1,30 +1,112 @@
 package dev.dhdf.polo.util;
 
+import dev.dhdf.polo.PoloPlugin;
+import dev.dhdf.polo.webclient.Config;
 import dev.dhdf.polo.webclient.WebClient;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.TimerTask;
-
 
 /**
- * This class gets the chat from Marco in a set interval
- * (see Main class)
+ * This class gets the chat from Marco, scheduling itself again after each
+ * run (see Main class)
+ *
+ * If Marco supports long polling, the events endpoint is instead held open
+ * until there are events, and requested again straight away, so that Matrix
+ * messages arrive without waiting for the next poll.
+ *
+ * Otherwise the interval adapts to the room: it drops to the minimum as soon
+ * as a poll returns events, so a conversation flows, and doubles after each
+ * empty poll up to the maximum, so a quiet room costs next to nothing.
  */
 public class Sync implements Runnable {
+    // How long Marco may hold a long poll open (ms)
+    private static final int LONG_POLL_WAIT = 20000;
+
+    private final PoloPlugin plugin;
     private final WebClient client;
     private final Logger logger = LoggerFactory.getLogger(Sync.class);
+    private final long minInterval;
+    private final long maxInterval;
 
     private boolean supportsEvents;
+    private boolean supportsLongPoll;
+    private long interval;
+    private volatile boolean stopped;
 
-    public Sync(WebClient client) {
+    /**
+     * Constructor.
+     * @param plugin The plugin, which schedules each run
+     * @param client The client to get events with
+     * @param config The sync-min-interval and sync-max-interval settings
+     */
+    public Sync(PoloPlugin plugin, WebClient client, Config config) {
+        this.plugin = plugin;
         this.client = client;
+        this.minInterval = Math.max(config.syncMinInterval, 50);
+        this.maxInterval = Math.max(config.syncMaxInterval, this.minInterval);
         this.supportsEvents = true;
+        this.supportsLongPoll = true;
+        this.interval = this.minInterval;
+        this.stopped = false;
+    }
+
+    /**
+     * Start syncing straight away.
+     */
+    public void start() {
+        plugin.executeAsync(this);
     }
 
     @Override
     public void run() {
+        if (stopped)
+            return;
+        long received = this.client.getReceivedCount();
+        try {
+            // If even the first long poll failed, find out whether the events
+            // endpoint is there at all
+            if (!supportsEvents || !supportsLongPoll || !longPoll())
+                poll();
+        } finally {
+            if (this.client.getReceivedCount() != received)
+                interval = minInterval;
+            else
+                interval = Math.min(interval * 2, maxInterval);
+            if (!stopped)
+                plugin.executeAsyncLater(this, interval);
+        }
+    }
+
+    /**
+     * Stop polling, including any long poll loop once its current request
+     * returns.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Keep requesting events with a wait until a request fails.
+     * @return boolean Whether any of the requests succeeded
+     */
+    private boolean longPoll() {
+        boolean received = false;
+        while (!stopped && this.client.getEvents(LONG_POLL_WAIT)) {
+            received = true;
+            if (!this.client.isLongPolling()) {
+                // Marco answered straight away, it must not support waiting
+                logger.info("Marco doesn't support long polling, polling at an interval instead");
+                supportsLongPoll = false;
+                break;
+            }
+        }
+        // On failure the next scheduled run tries again
+        return received;
+    }
+
+    private void poll() {
         // Default to the events endpoint unless we know it isn't supported
         if (!supportsEvents || !this.client.getEvents()) {
             // Fall back to the legacy plain chat endpoint
@@ -0,0 +1,135 @@
+package dev.dhdf.polo.util;
+
+import java.util.UUID;
+
+
+/**
+ * Converts UUIDs to and from the dashless hex form Marco uses, e.g.
+ * 069a79f444e94726a5befca90e38aaf5, without regular expressions or
+ * intermediate strings.
+ *
+ * Recently seen UUIDs are kept in a small direct-mapped cache, so the same
+ * few online players are converted to the same UUID and String instances
+ * each time rather than new ones.
+ */
+public final class UuidCodec {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    // Must be a power of 2
+    private static final int CACHE_SIZE = 256;
+    // Entries are immutable, so racing threads at worst replace each other's
+    private static final Entry[] cache = new Entry[CACHE_SIZE];
+
+    private UuidCodec() {
+    }
+
+    /**
+     * Write a UUID without dashes, the same as
+     * uuid.toString().replace("-", "").
+     * @param uuid The UUID
+     * @return String 32 lower case hex digits
+     */
+    public static String toString(UUID uuid) {
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        Entry entry = lookup(msb, lsb);
+        if (entry != null && entry.dashless != null)
+            return entry.dashless;
+
+        char[] chars = new char[32];
+        writeHex(chars, 0, msb);
+        writeHex(chars, 16, lsb);
+        String dashless = new String(chars);
+        // A UUID that was only read has no string yet, keep its instance
+        store(new Entry(entry != null ? entry.uuid : uuid, dashless));
+        return dashless;
+    }
+
+    /**
+     * Read a UUID, either without dashes as Marco sends them or in the usual
+     * dashed form.
+     * @param string The UUID
+     * @return UUID The UUID
+     * @throws IllegalArgumentException if it isn't a valid UUID
+     */
+    public static UUID fromString(String string) {
+        long msb;
+        long lsb;
+        if (string.length() == 32) {
+            msb = readHex(string, 0, 16);
+            lsb = readHex(string, 16, 32);
+        } else if (string.length() == 36
+                && string.charAt(8) == '-' && string.charAt(13) == '-'
+                && string.charAt(18) == '-' && string.charAt(23) == '-') {
+            msb = readHex(string, 0, 8) << 32 | readHex(string, 9, 13) << 16 | readHex(string, 14, 18);
+            lsb = readHex(string, 19, 23) << 48 | readHex(string, 24, 36);
+        } else {
+            throw new IllegalArgumentException("Invalid UUID: " + string);
+        }
+
+        Entry entry = lookup(msb, lsb);
+        if (entry != null)
+            return entry.uuid;
+        UUID uuid = new UUID(msb, lsb);
+        store(new Entry(uuid, null));
+        return uuid;
+    }
+
+    private static long readHex(String string, int start, int end) {
+        long value = 0;
+        for (int i = start; i < end; ++i) {
+            char c = string.charAt(i);
+            int digit;
+            if (c >= '0' && c <= '9')
+                digit = c - '0';
+            else if (c >= 'a' && c <= 'f')
+                digit = c - 'a' + 10;
+            else if (c >= 'A' && c <= 'F')
+                digit = c - 'A' + 10;
+            else
+                throw new IllegalArgumentException("Invalid UUID: " + string);
+            value = value << 4 | digit;
+        }
+        return value;
+    }
+
+    private static void writeHex(char[] chars, int offset, long value) {
+        for (int i = 15; i >= 0; --i) {
+            chars[offset + i] = HEX[(int) (value & 0xf)];
+            value >>>= 4;
+        }
+    }
+
+    private static int index(long msb, long lsb) {
+        long hash = msb ^ lsb;
+        return (int) (hash ^ hash >>> 32) & (CACHE_SIZE - 1);
+    }
+
+    private static Entry lookup(long msb, long lsb) {
+        Entry entry = cache[index(msb, lsb)];
+        if (entry != null
+                && entry.uuid.getMostSignificantBits() == msb
+                && entry.uuid.getLeastSignificantBits() == lsb)
+            return entry;
+        return null;
+    }
+
+    private static void store(Entry entry) {
+        UUID uuid = entry.uuid;
+        int index = index(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        Entry old = cache[index];
+        // Keep the string of a UUID that was written before
+        if (entry.dashless == null && old != null && old.uuid.equals(uuid))
+            return;
+        cache[index] = entry;
+    }
+
+    private static class Entry {
+        final UUID uuid;
+        final String dashless;
+
+        Entry(UUID uuid, String dashless) {
+            this.uuid = uuid;
+            this.dashless = dashless;
+        }
+    }
+}
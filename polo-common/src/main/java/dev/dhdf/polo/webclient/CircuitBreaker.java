@@ -0,0 +1,148 @@
+package dev.dhdf.polo.webclient;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.ConnectException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BooleanSupplier;
+
+
+/**
+ * Stops requests being sent to Marco while it is down.
+ *
+ * After a number of consecutive failures the breaker opens and requests fail
+ * straight away, without a socket or a log line each. Once the open time has
+ * passed one caller probes Marco (half open); if Marco answers the breaker
+ * closes again, otherwise it stays open for twice as long, up to a limit.
+ * Only changes of state are logged.
+ */
+public class CircuitBreaker {
+    /**
+     * Thrown instead of sending a request while the breaker is open.
+     */
+    public static class OpenException extends ConnectException {
+        private static final long serialVersionUID = 1L;
+
+        public OpenException() {
+            super("Marco is unreachable, request not sent");
+        }
+    }
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+    private final int failureThreshold;
+    private final long minOpenTime;
+    private final long maxOpenTime;
+    private final BooleanSupplier probe;
+
+    private State state;
+    private int failures;
+    private long openTime;
+    private long reopenAt;
+    private long openedAt;
+
+    /**
+     * Constructor.
+     * @param failureThreshold Consecutive failures before the breaker opens
+     * @param minOpenTime      Time before Marco is first probed (ms)
+     * @param maxOpenTime      Longest time between probes (ms)
+     * @param probe            Checks whether Marco is back, without going
+     *                         through the breaker
+     */
+    public CircuitBreaker(int failureThreshold, long minOpenTime, long maxOpenTime, BooleanSupplier probe) {
+        this.failureThreshold = Math.max(failureThreshold, 1);
+        this.minOpenTime = Math.max(minOpenTime, 1);
+        this.maxOpenTime = Math.max(maxOpenTime, this.minOpenTime);
+        this.probe = probe;
+        this.state = State.CLOSED;
+        this.failures = 0;
+    }
+
+    /**
+     * Whether a request may be sent to Marco. If Marco is due to be probed
+     * the probe is made first, on the calling thread.
+     * @return boolean False if the request should fail straight away
+     */
+    public boolean allowRequest() {
+        synchronized (this) {
+            if (state == State.CLOSED)
+                return true;
+            if (state == State.HALF_OPEN || System.currentTimeMillis() < reopenAt)
+                return false;
+            // Only this caller probes, the rest keep failing fast
+            state = State.HALF_OPEN;
+        }
+
+        boolean up;
+        try {
+            up = probe.getAsBoolean();
+        } catch (RuntimeException e) {
+            up = false;
+        }
+
+        synchronized (this) {
+            if (up) {
+                close();
+            } else {
+                openTime = Math.min(openTime * 2, maxOpenTime);
+                open();
+            }
+        }
+        return up;
+    }
+
+    /**
+     * Record that Marco answered a request.
+     */
+    public synchronized void recordSuccess() {
+        failures = 0;
+        if (state != State.CLOSED)
+            close();
+    }
+
+    /**
+     * Record that Marco couldn't be reached.
+     */
+    public synchronized void recordFailure() {
+        ++failures;
+        if (state == State.CLOSED && failures >= failureThreshold) {
+            openTime = minOpenTime;
+            openedAt = System.currentTimeMillis();
+            logger.warn("Marco is unreachable, pausing requests to it until it is back");
+            open();
+        }
+    }
+
+    private void open() {
+        state = State.OPEN;
+        // Jitter the probes so a fleet of servers doesn't probe in step
+        long jitter = ThreadLocalRandom.current().nextLong(openTime / 4 + 1);
+        reopenAt = System.currentTimeMillis() + openTime - jitter;
+    }
+
+    private void close() {
+        if (state != State.CLOSED) {
+            logger.info("Marco is reachable again after {}s", (System.currentTimeMillis() - openedAt) / 1000);
+            state = State.CLOSED;
+        }
+        failures = 0;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Whether requests are currently failing fast.
+     * @return boolean True unless the breaker is closed
+     */
+    public synchronized boolean isOpen() {
+        return state != State.CLOSED;
+    }
+}
@@ -12,12 +12,40 @@ public class Config {
     public final boolean relayMinecraftDeaths;
     public final boolean relayMatrixKicks;
     public final boolean relayMatrixBans;
+    public final int batchSize;
+    public final int batchLinger;
+    public final String transport;
+    public final int queueCapacity;
+    public final int senderThreads;
+    public final String overflowPolicy;
+    public final int outboxSize;
+    public final int outboxRetention;
+    public final int breakerThreshold;
+    public final int breakerMaxWait;
+    public final int syncMinInterval;
+    public final int syncMaxInterval;
+    public final int compressThreshold;
+    public final int metricsInterval;
 
     public Config(String address, int port, String token,
                   boolean relayMinecraftMembership,
                   boolean relayMinecraftDeaths,
                   boolean relayMatrixKicks,
-                  boolean relayMatrixBans) {
+                  boolean relayMatrixBans,
+                  int batchSize,
+                  int batchLinger,
+                  String transport,
+                  int queueCapacity,
+                  int senderThreads,
+                  String overflowPolicy,
+                  int outboxSize,
+                  int outboxRetention,
+                  int breakerThreshold,
+                  int breakerMaxWait,
+                  int syncMinInterval,
+                  int syncMaxInterval,
+                  int compressThreshold,
+                  int metricsInterval) {
         this.address = address;
         this.port = port;
         this.token = token;
@@ -25,5 +53,19 @@ public class Config {
         this.relayMinecraftDeaths = relayMinecraftDeaths;
         this.relayMatrixKicks = relayMatrixKicks;
         this.relayMatrixBans = relayMatrixBans;
+        this.batchSize = batchSize;
+        this.batchLinger = batchLinger;
+        this.transport = transport;
+        this.queueCapacity = queueCapacity;
+        this.senderThreads = senderThreads;
+        this.overflowPolicy = overflowPolicy;
+        this.outboxSize = outboxSize;
+        this.outboxRetention = outboxRetention;
+        this.breakerThreshold = breakerThreshold;
+        this.breakerMaxWait = breakerMaxWait;
+        this.syncMinInterval = syncMinInterval;
+        this.syncMaxInterval = syncMaxInterval;
+        this.compressThreshold = compressThreshold;
+        this.metricsInterval = metricsInterval;
     }
 }
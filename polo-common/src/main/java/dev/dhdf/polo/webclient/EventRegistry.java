@@ -0,0 +1,73 @@
+package dev.dhdf.polo.webclient;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+
+/**
+ * The handlers of events from Marco, by event type. Each event is decoded
+ * once into its typed form and passed to the handler for its type.
+ */
+public class EventRegistry {
+    /**
+     * Decodes an event from Marco into its typed form.
+     */
+    public interface Decoder<T> {
+        /**
+         * @param type  Event type, e.g. message.text
+         * @param event The event as Marco sent it
+         * @return T The decoded event
+         */
+        T decode(String type, JSONObject event);
+    }
+
+    private final ConcurrentHashMap<String, Entry<?>> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Handle events of a type, replacing any previous handler for it.
+     * @param type    Event type, e.g. message.text
+     * @param decoder Decodes the events
+     * @param handler Handles the decoded events
+     */
+    public <T> void register(String type, Decoder<T> decoder, Consumer<? super T> handler) {
+        entries.put(type, new Entry<>(decoder, handler));
+    }
+
+    /**
+     * Stop handling events of a type.
+     * @param type Event type
+     */
+    public void unregister(String type) {
+        entries.remove(type);
+    }
+
+    /**
+     * Decode and handle an event.
+     * @param type  Event type
+     * @param event The event as Marco sent it
+     * @return boolean False if there is no handler for its type
+     */
+    public boolean dispatch(String type, JSONObject event) {
+        Entry<?> entry = entries.get(type);
+        if (entry == null)
+            return false;
+        entry.dispatch(type, event);
+        return true;
+    }
+
+    private static final class Entry<T> {
+        private final Decoder<T> decoder;
+        private final Consumer<? super T> handler;
+
+        Entry(Decoder<T> decoder, Consumer<? super T> handler) {
+            this.decoder = decoder;
+            this.handler = handler;
+        }
+
+        void dispatch(String type, JSONObject event) {
+            handler.accept(decoder.decode(type, event));
+        }
+    }
+}
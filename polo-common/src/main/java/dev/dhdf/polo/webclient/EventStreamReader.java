@@ -0,0 +1,84 @@
+package dev.dhdf.polo.webclient;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.Reader;
+import java.util.function.Consumer;
+
+
+/**
+ * Reads an /events response ({"events": [...]}) as it arrives, handing each
+ * event over as soon as it has been parsed rather than once the whole
+ * response has been. Only one event is held in memory at a time, however
+ * big a backlog Marco returns after an outage.
+ */
+public class EventStreamReader {
+    private final JSONTokener tokener;
+
+    public EventStreamReader(Reader reader) {
+        this.tokener = new JSONTokener(reader);
+    }
+
+    /**
+     * Read the response, handling each event in order.
+     * @param handler Handles each event
+     * @return int Number of events read
+     * @throws JSONException if the response isn't a valid events object
+     */
+    public int read(Consumer<JSONObject> handler) throws JSONException {
+        if (tokener.nextClean() != '{')
+            throw tokener.syntaxError("A JSONObject text must begin with '{'");
+
+        int count = -1;
+        if (tokener.nextClean() != '}') {
+            tokener.back();
+            for (;;) {
+                if (tokener.nextClean() != '"')
+                    throw tokener.syntaxError("Expected a key");
+                String key = tokener.nextString('"');
+                if (tokener.nextClean() != ':')
+                    throw tokener.syntaxError("Expected a ':' after a key");
+
+                if (key.equals("events"))
+                    count = readEvents(handler);
+                else
+                    tokener.nextValue();
+
+                char c = tokener.nextClean();
+                if (c == '}')
+                    break;
+                if (c != ',')
+                    throw tokener.syntaxError("Expected a ',' or '}'");
+            }
+        }
+
+        if (count < 0)
+            throw new JSONException("JSONObject[\"events\"] not found.");
+        return count;
+    }
+
+    private int readEvents(Consumer<JSONObject> handler) throws JSONException {
+        if (tokener.nextClean() != '[')
+            throw tokener.syntaxError("A JSONArray text must start with '['");
+        if (tokener.nextClean() == ']')
+            return 0;
+        tokener.back();
+
+        int count = 0;
+        for (;;) {
+            Object event = tokener.nextValue();
+            if (!(event instanceof JSONObject))
+                throw new JSONException("JSONArray[" + count + "] is not a JSONObject.");
+            handler.accept((JSONObject) event);
+            ++count;
+
+            char c = tokener.nextClean();
+            if (c == ']')
+                return count;
+            if (c != ',')
+                throw tokener.syntaxError("Expected a ',' or ']'");
+        }
+    }
+}
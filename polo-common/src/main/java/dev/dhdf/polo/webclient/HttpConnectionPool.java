@@ -0,0 +1,403 @@
+package dev.dhdf.polo.webclient;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A small pool of persistent HTTP/1.1 connections to Marco.
+ * The address of Marco and the fixed part of each request (request line,
+ * Host, Authorization etc.) are resolved once, so sending an event only costs
+ * writing the body to an already open socket.
+ */
+public class HttpConnectionPool {
+    // Marco (node) closes idle keep-alive connections after 5 seconds, so
+    // stop reusing them a little before that
+    private static final long IDLE_TIMEOUT = 4000;
+    private static final int CONNECT_TIMEOUT = 5000;
+    static final int READ_TIMEOUT = 10000;
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    private final Logger logger = LoggerFactory.getLogger(HttpConnectionPool.class);
+    private final String host;
+    private final int port;
+    private final int maxIdle;
+    private final byte[] commonHeaders;
+    private final Map<String, byte[]> requestLines = new ConcurrentHashMap<>();
+    private final ArrayDeque<Connection> idle = new ArrayDeque<>();
+    private volatile InetSocketAddress address;
+    private volatile boolean closed;
+
+    // Utilisation statistics
+    private final AtomicInteger leased = new AtomicInteger();
+    private final AtomicInteger peakLeased = new AtomicInteger();
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param config  Connection settings
+     * @param maxIdle Maximum number of idle connections to keep open
+     */
+    public HttpConnectionPool(Config config, int maxIdle) {
+        this.host = config.address;
+        this.port = config.port;
+        this.maxIdle = maxIdle;
+        this.address = new InetSocketAddress(host, port);
+        this.closed = false;
+
+        String headers = "Host: " + host + ":" + port + "\r\n"
+                + "Authorization: Bearer " + config.token + "\r\n"
+                + "Content-Type: application/json\r\n"
+                + "User-Agent: Marco Spigot Plugin\r\n"
+                + "Accept-Encoding: gzip\r\n"
+                + "Connection: keep-alive\r\n";
+        this.commonHeaders = headers.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Send a request to Marco and read the response head. The caller must
+     * close the response.
+     *
+     * @param method   HTTP method
+     * @param endpoint Path of the endpoint, e.g. /chat
+     * @param body     Request body, or null for none
+     * @return HttpResponse The response
+     * @throws IOException if Marco couldn't be reached
+     */
+    public HttpResponse request(String method, String endpoint, byte[] body) throws IOException {
+        return request(method, endpoint, body, READ_TIMEOUT);
+    }
+
+    /**
+     * Send a request to Marco which may take a while to respond, such as a
+     * long poll. The caller must close the response.
+     *
+     * @param method      HTTP method
+     * @param endpoint    Path of the endpoint, e.g. /events
+     * @param body        Request body, or null for none
+     * @param readTimeout How long to wait for the response (ms)
+     * @return HttpResponse The response
+     * @throws IOException if Marco couldn't be reached
+     */
+    public HttpResponse request(String method, String endpoint, byte[] body, int readTimeout) throws IOException {
+        return request(method, endpoint, body, readTimeout, null);
+    }
+
+    /**
+     * Send a request to Marco with extra headers. The caller must close the
+     * response.
+     *
+     * @param method      HTTP method
+     * @param endpoint    Path of the endpoint, e.g. /events
+     * @param body        Request body, or null for none
+     * @param readTimeout How long to wait for the response (ms)
+     * @param headers     Header lines, each ending in CRLF, or null for none
+     * @return HttpResponse The response
+     * @throws IOException if Marco couldn't be reached
+     */
+    public HttpResponse request(String method, String endpoint, byte[] body, int readTimeout,
+                                String headers) throws IOException {
+        byte[] extraHeaders = headers != null ? headers.getBytes(StandardCharsets.UTF_8) : null;
+        byte[] requestLine = requestLines.computeIfAbsent(method + " " + endpoint,
+                k -> (k + " HTTP/1.1\r\n").getBytes(StandardCharsets.UTF_8));
+
+        Connection connection = acquire();
+        try {
+            return exchange(connection, method, requestLine, extraHeaders, body, readTimeout);
+        } catch (IOException e) {
+            release(connection, false);
+            // A reused connection may have been closed by Marco while it sat
+            // in the pool, in which case the request never arrived. Try once
+            // more on a fresh connection, unless the request was written
+            // whole and Marco may have acted on it: only a GET or HEAD can
+            // safely be sent twice.
+            boolean resendable = !connection.written || method.equals("GET") || method.equals("HEAD");
+            if (!connection.fresh && resendable && !(e instanceof SocketTimeoutException)) {
+                Connection retry = connect();
+                try {
+                    return exchange(retry, method, requestLine, extraHeaders, body, readTimeout);
+                } catch (IOException e2) {
+                    release(retry, false);
+                    throw e2;
+                }
+            }
+            throw e;
+        }
+    }
+
+    private HttpResponse exchange(Connection connection, String method,
+                                  byte[] requestLine, byte[] extraHeaders, byte[] body,
+                                  int readTimeout) throws IOException {
+        if (connection.readTimeout != readTimeout) {
+            connection.socket.setSoTimeout(readTimeout);
+            connection.readTimeout = readTimeout;
+        }
+
+        connection.written = false;
+        OutputStream out = connection.out;
+        out.write(requestLine);
+        out.write(commonHeaders);
+        if (extraHeaders != null)
+            out.write(extraHeaders);
+        if (body != null) {
+            out.write(("Content-Length: " + body.length).getBytes(StandardCharsets.US_ASCII));
+            out.write(CRLF);
+        }
+        out.write(CRLF);
+        if (body != null)
+            out.write(body);
+        out.flush();
+        connection.written = true;
+
+        InputStream in = connection.in;
+        String statusLine;
+        int status;
+        do {
+            statusLine = readLine(in);
+            status = parseStatus(statusLine);
+            // Skip any interim 1xx responses
+            if (status >= 100 && status < 200) {
+                while (!readLine(in).isEmpty())
+                    ;
+            }
+        } while (status >= 100 && status < 200);
+
+        Map<String, String> headers = new HashMap<>();
+        String line;
+        while (!(line = readLine(in)).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0)
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                            line.substring(colon + 1).trim());
+        }
+
+        boolean keepAlive;
+        String connectionHeader = headers.get("connection");
+        if (statusLine.startsWith("HTTP/1.0"))
+            keepAlive = "keep-alive".equalsIgnoreCase(connectionHeader);
+        else
+            keepAlive = !"close".equalsIgnoreCase(connectionHeader);
+
+        HttpResponse.BodyInputStream bodyStream;
+        String transferEncoding = headers.get("transfer-encoding");
+        String contentLength = headers.get("content-length");
+        if (method.equals("HEAD") || status == 204 || status == 304) {
+            bodyStream = new HttpResponse.EmptyInputStream(in);
+        } else if (transferEncoding != null && transferEncoding.toLowerCase(Locale.ROOT).contains("chunked")) {
+            bodyStream = new HttpResponse.ChunkedInputStream(in);
+        } else if (contentLength != null) {
+            try {
+                bodyStream = new HttpResponse.FixedLengthInputStream(in, Long.parseLong(contentLength));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid Content-Length '" + contentLength + "'");
+            }
+        } else {
+            bodyStream = new HttpResponse.UntilCloseInputStream(in);
+            keepAlive = false;
+        }
+
+        return new HttpResponse(this, connection, status, headers, bodyStream, keepAlive);
+    }
+
+    /**
+     * Read the status code of a status line.
+     */
+    static int parseStatus(String statusLine) throws IOException {
+        // HTTP/1.1 200 OK
+        int space = statusLine.indexOf(' ');
+        if (!statusLine.startsWith("HTTP/") || space < 0 || statusLine.length() < space + 4)
+            throw new IOException("Invalid status line '" + statusLine + "'");
+        try {
+            return Integer.parseInt(statusLine.substring(space + 1, space + 4));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid status line '" + statusLine + "'");
+        }
+    }
+
+    /**
+     * Read a CRLF (or LF) terminated line of ASCII.
+     */
+    static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0)
+                throw new EOFException("Connection closed by Marco");
+            if (c != '\r')
+                line.append((char) c);
+        }
+        return line.toString();
+    }
+
+    private Connection acquire() throws IOException {
+        long now = System.currentTimeMillis();
+        Connection connection = null;
+        synchronized (idle) {
+            while ((connection = idle.pollFirst()) != null) {
+                if (now - connection.lastUsed < IDLE_TIMEOUT)
+                    break;
+                discarded.incrementAndGet();
+                connection.close();
+            }
+        }
+
+        if (connection == null)
+            return connect();
+
+        connection.fresh = false;
+        reused.incrementAndGet();
+        lease();
+        return connection;
+    }
+
+    private Connection connect() throws IOException {
+        InetSocketAddress address = this.address;
+        // Retry name resolution if it failed when the pool was created
+        if (address.isUnresolved()) {
+            address = new InetSocketAddress(host, port);
+            this.address = address;
+        }
+
+        Socket socket = new Socket();
+        Connection connection;
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.setSoTimeout(READ_TIMEOUT);
+            socket.connect(address, CONNECT_TIMEOUT);
+            connection = new Connection(socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        opened.incrementAndGet();
+        lease();
+        logger.debug("Opened connection to Marco, pool: {}", getStats());
+        return connection;
+    }
+
+    private void lease() {
+        int now = leased.incrementAndGet();
+        int peak;
+        while (now > (peak = peakLeased.get()) && !peakLeased.compareAndSet(peak, now))
+            ;
+    }
+
+    /**
+     * Return a connection to the pool.
+     * @param connection The connection
+     * @param reusable   Whether it's in a state to send another request
+     */
+    void release(Connection connection, boolean reusable) {
+        leased.decrementAndGet();
+        if (reusable && !closed) {
+            connection.lastUsed = System.currentTimeMillis();
+            synchronized (idle) {
+                if (idle.size() < maxIdle) {
+                    // Most recently used first, so the older ones age out
+                    idle.addFirst(connection);
+                    return;
+                }
+            }
+        }
+        discarded.incrementAndGet();
+        connection.close();
+    }
+
+    /**
+     * Close all idle connections, and any in use once they are released.
+     */
+    public void close() {
+        closed = true;
+        synchronized (idle) {
+            Connection connection;
+            while ((connection = idle.pollFirst()) != null)
+                connection.close();
+        }
+    }
+
+    public int getIdleCount() {
+        synchronized (idle) {
+            return idle.size();
+        }
+    }
+
+    public int getLeasedCount() {
+        return leased.get();
+    }
+
+    public int getPeakLeasedCount() {
+        return peakLeased.get();
+    }
+
+    public long getOpenedCount() {
+        return opened.get();
+    }
+
+    public long getReusedCount() {
+        return reused.get();
+    }
+
+    /**
+     * Describe the utilisation of the pool.
+     * @return String Summary of pool statistics
+     */
+    public String getStats() {
+        long opened = getOpenedCount();
+        long reused = getReusedCount();
+        long total = opened + reused;
+        return String.format("%d leased (peak %d), %d idle, %d opened, %d reused (%.1f%% reuse), %d discarded",
+                getLeasedCount(), getPeakLeasedCount(), getIdleCount(), opened, reused,
+                total == 0 ? 0.0 : 100.0 * reused / total, discarded.get());
+    }
+
+    /**
+     * An open socket to Marco.
+     */
+    static class Connection {
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        long lastUsed;
+        boolean fresh;
+        // Whether the whole of the current request has been sent
+        boolean written;
+        int readTimeout;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream(), 8192);
+            this.out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+            this.lastUsed = System.currentTimeMillis();
+            this.fresh = true;
+            this.readTimeout = socket.getSoTimeout();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
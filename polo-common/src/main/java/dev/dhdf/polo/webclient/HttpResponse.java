@@ -0,0 +1,237 @@
+package dev.dhdf.polo.webclient;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+
+/**
+ * A response read from a pooled HTTP/1.1 connection to Marco.
+ * The body must be closed (which drains whatever is left of it) so the
+ * connection can be handed back to the pool for the next request.
+ */
+public class HttpResponse implements Closeable {
+    // Bodies bigger than this are not worth draining to save a connection
+    private static final long MAX_DRAIN = 64 * 1024;
+
+    private final HttpConnectionPool pool;
+    private final HttpConnectionPool.Connection connection;
+    private final int status;
+    private final Map<String, String> headers;
+    private final BodyInputStream body;
+    private final boolean keepAlive;
+    private InputStream decoded;
+    private boolean closed;
+
+    HttpResponse(HttpConnectionPool pool, HttpConnectionPool.Connection connection,
+                 int status, Map<String, String> headers,
+                 BodyInputStream body, boolean keepAlive) {
+        this.pool = pool;
+        this.connection = connection;
+        this.status = status;
+        this.headers = headers;
+        this.body = body;
+        this.keepAlive = keepAlive;
+        this.closed = false;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * Get a response header.
+     * @param name Header name, in lower case
+     * @return String The header value, or null if it wasn't sent
+     */
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    /**
+     * Get the response body, decompressed if Marco compressed it. It ends
+     * where the response ends, it is never necessary to read past it.
+     * @return InputStream The body
+     * @throws IOException if a compressed body has an invalid header
+     */
+    public InputStream getBody() throws IOException {
+        if (decoded == null) {
+            String encoding = headers.get("content-encoding");
+            if (encoding != null && encoding.trim().toLowerCase(Locale.ROOT).equals("gzip"))
+                decoded = new GZIPInputStream(body, 8192);
+            else
+                decoded = body;
+        }
+        return decoded;
+    }
+
+    /**
+     * Drain the rest of the body and return the connection to the pool, or
+     * close it if it can't be reused.
+     */
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+
+        boolean reusable = keepAlive;
+        if (reusable) {
+            try {
+                reusable = body.drain(MAX_DRAIN);
+            } catch (IOException e) {
+                reusable = false;
+            }
+        }
+        pool.release(connection, reusable);
+    }
+
+    /**
+     * Base class of the body framings, which know whether the body has been
+     * fully read.
+     */
+    static abstract class BodyInputStream extends InputStream {
+        protected final InputStream in;
+
+        BodyInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * Read and discard the rest of the body.
+         * @param max Maximum number of bytes worth discarding
+         * @return boolean Whether the body was fully drained
+         */
+        boolean drain(long max) throws IOException {
+            byte[] skip = new byte[512];
+            long total = 0;
+            int n;
+            while (total <= max && (n = read(skip, 0, skip.length)) >= 0)
+                total += n;
+            return total <= max;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public void close() {
+            // The connection is owned by the response, not the body
+        }
+    }
+
+    /**
+     * A body with no content at all (HEAD, 204, 304).
+     */
+    static class EmptyInputStream extends BodyInputStream {
+        EmptyInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            return -1;
+        }
+    }
+
+    /**
+     * A body framed by a Content-Length header.
+     */
+    static class FixedLengthInputStream extends BodyInputStream {
+        private long remaining;
+
+        FixedLengthInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0)
+                return -1;
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n < 0)
+                throw new EOFException("Connection closed before end of response body");
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+    }
+
+    /**
+     * A body sent with chunked transfer encoding.
+     */
+    static class ChunkedInputStream extends BodyInputStream {
+        private long chunkRemaining;
+        private boolean eof;
+
+        ChunkedInputStream(InputStream in) {
+            super(in);
+            this.chunkRemaining = 0;
+            this.eof = false;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (eof)
+                return -1;
+            if (chunkRemaining == 0) {
+                String sizeLine = HttpConnectionPool.readLine(in);
+                int ext = sizeLine.indexOf(';');
+                if (ext >= 0)
+                    sizeLine = sizeLine.substring(0, ext);
+                try {
+                    chunkRemaining = Long.parseLong(sizeLine.trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid chunk size '" + sizeLine + "'");
+                }
+                if (chunkRemaining == 0) {
+                    // Skip trailers up to the blank line
+                    while (!HttpConnectionPool.readLine(in).isEmpty())
+                        ;
+                    eof = true;
+                    return -1;
+                }
+            }
+            int n = in.read(b, off, (int) Math.min(len, chunkRemaining));
+            if (n < 0)
+                throw new EOFException("Connection closed before end of chunked body");
+            chunkRemaining -= n;
+            if (chunkRemaining == 0)
+                HttpConnectionPool.readLine(in); // CRLF after chunk data
+            return n;
+        }
+    }
+
+    /**
+     * A body without framing, which lasts until the server closes the
+     * connection.
+     */
+    static class UntilCloseInputStream extends BodyInputStream {
+        UntilCloseInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return in.read(b, off, len);
+        }
+
+        @Override
+        boolean drain(long max) {
+            return false;
+        }
+    }
+}
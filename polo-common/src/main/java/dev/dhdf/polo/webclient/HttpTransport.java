@@ -0,0 +1,398 @@
+package dev.dhdf.polo.webclient;
+
+import dev.dhdf.polo.metrics.Metrics;
+import dev.dhdf.polo.types.EventCodec;
+import dev.dhdf.polo.types.MCEvent;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * Exchanges events with Marco using plain HTTP requests over a pool of
+ * keep-alive connections: events are posted (in batches where supported)
+ * and new events are fetched by (long) polling /events.
+ *
+ * Failed requests are retried according to the RetryPolicy for their
+ * endpoint, and while Marco is down the CircuitBreaker fails them without
+ * trying at all.
+ *
+ * Request bodies of at least the configured size are gzipped, unless Marco
+ * has answered one with 415 Unsupported Media Type, and Marco may gzip its
+ * responses.
+ */
+public class HttpTransport implements Transport {
+    // Results of post() other than a response code
+    private static final int NOT_ACCEPTED = 0;
+    private static final int UNREACHABLE = -1;
+
+    private final Logger logger = LoggerFactory.getLogger(HttpTransport.class);
+    private final HttpConnectionPool pool;
+    private final CircuitBreaker breaker;
+    private final int compressThreshold;
+    private volatile boolean compressRequests;
+    private volatile boolean supportsBatch;
+    private volatile boolean longPolling;
+    // The ETag of the last events Marco returned, so an unchanged room can
+    // be answered with an empty 304
+    private volatile String eventsTag;
+
+    public HttpTransport(Config config) {
+        // Enough for the sync poll plus a few concurrent event posts
+        this.pool = new HttpConnectionPool(config, 4);
+        this.breaker = new CircuitBreaker(config.breakerThreshold, 1000,
+                config.breakerMaxWait * 1000L, this::probe);
+        this.compressThreshold = config.compressThreshold;
+        this.compressRequests = config.compressThreshold > 0;
+        this.supportsBatch = true;
+        this.longPolling = false;
+    }
+
+    /**
+     * Deliver a batch of events to Marco. If Marco doesn't support batches
+     * the events are posted to their own endpoints one at a time instead,
+     * but a batch that failed any other way isn't.
+     *
+     * Events Marco failed to handle (a 5xx, or an error that isn't Marco's
+     * own JSON, e.g. a proxy's page) are left undelivered for the outbox.
+     * Events it refused with a 4xx are logged and counted as delivered, as
+     * sending them again would only be refused again.
+     */
+    @Override
+    public int deliver(List<MCEvent> events) {
+        if (events.size() > 1 && supportsBatch) {
+            int resCode = post("/batch", EventCodec.get().encodeBatch(events));
+            if (resCode == 200)
+                return events.size();
+            if (resCode == 404 || resCode == 405 || resCode == 501) {
+                logger.warn("Marco doesn't support batched events, please update matrix-appservice-minecraft");
+                supportsBatch = false;
+            } else if (resCode <= NOT_ACCEPTED) {
+                // Marco is unreachable or failed part way through the batch,
+                // posting each event could repeat the ones it did handle
+                return 0;
+            } else {
+                return events.size();
+            }
+        }
+
+        for (int i = 0; i < events.size(); ++i) {
+            MCEvent event = events.get(i);
+            // Once Marco is failing the rest would only fail too
+            if (post(event.getEndpoint(), event.toBytes()) <= NOT_ACCEPTED)
+                return i;
+        }
+        return events.size();
+    }
+
+    /**
+     * Post an event or a batch of events.
+     *
+     * @param endpoint Path of the endpoint
+     * @param body     The event or batch, as UTF-8 JSON
+     * @return int Response code, NOT_ACCEPTED if Marco failed to handle the
+     *             request or UNREACHABLE if it couldn't be reached
+     */
+    private int post(String endpoint, byte[] body) {
+        try (HttpResponse response = request("POST", endpoint, body,
+                HttpConnectionPool.READ_TIMEOUT, null)) {
+            int resCode = response.getStatus();
+            // Unsupported batches are handled by the caller
+            boolean unsupportedBatch = endpoint.equals("/batch")
+                    && (resCode == 404 || resCode == 405 || resCode == 501);
+            if (unsupportedBatch)
+                return resCode;
+            if (resCode != 200)
+                readResponse(response, endpoint, false);
+            return resCode >= 500 ? NOT_ACCEPTED : resCode;
+        } catch (JSONException e) {
+            // Something answered, just not Marco with a JSON error
+            e.printStackTrace();
+            return NOT_ACCEPTED;
+        } catch (ConnectException e) {
+            logConnectFailure(e);
+            return UNREACHABLE;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return UNREACHABLE;
+        }
+    }
+
+    /**
+     * Send a request through the circuit breaker, retrying it according to
+     * the policy for its endpoint. How long it takes to respond, retries and
+     * all, is recorded in the metrics for the endpoint.
+     *
+     * @param method      HTTP method
+     * @param endpoint    Path of the endpoint
+     * @param body        Request body, or null
+     * @param readTimeout How long to wait for the response (ms)
+     * @param headers     Extra header lines, each ending in CRLF, or null
+     * @return HttpResponse The response, which must be closed
+     * @throws IOException if Marco couldn't be reached, including
+     *                     CircuitBreaker.OpenException while it is down
+     */
+    private HttpResponse request(String method, String endpoint, byte[] body, int readTimeout,
+                                 String headers) throws IOException {
+        // Metrics are by endpoint, whatever the query
+        int query = endpoint.indexOf('?');
+        String path = query < 0 ? endpoint : endpoint.substring(0, query);
+        Metrics metrics = Metrics.get();
+        if (!breaker.allowRequest()) {
+            metrics.counter("polo_http_rejected_total", "endpoint", path).increment();
+            throw new CircuitBreaker.OpenException();
+        }
+
+        long start = System.nanoTime();
+        try {
+            return send(method, endpoint, path, body, readTimeout, headers);
+        } finally {
+            metrics.histogram("polo_http_request_seconds", "endpoint", path).recordSince(start);
+        }
+    }
+
+    /**
+     * Send a request that the circuit breaker has let through.
+     */
+    private HttpResponse send(String method, String endpoint, String path, byte[] body, int readTimeout,
+                              String headers) throws IOException {
+        Metrics metrics = Metrics.get();
+        byte[] sent = body;
+        String sentHeaders = headers;
+        boolean compressed = body != null && compressRequests && body.length >= compressThreshold;
+        if (compressed) {
+            sent = gzip(body);
+            sentHeaders = (headers != null ? headers : "") + "Content-Encoding: gzip\r\n";
+        }
+
+        RetryPolicy policy = RetryPolicy.forEndpoint(method, endpoint);
+        for (int attempt = 1; ; ++attempt) {
+            HttpResponse response;
+            try {
+                response = pool.request(method, endpoint, sent, readTimeout, sentHeaders);
+            } catch (IOException e) {
+                breaker.recordFailure();
+                if (e instanceof SocketTimeoutException)
+                    metrics.counter("polo_http_timeouts_total", "endpoint", path).increment();
+                else
+                    metrics.counter("polo_http_failures_total", "endpoint", path).increment();
+                // A POST that may have reached Marco isn't sent twice
+                boolean unsent = e instanceof ConnectException || method.equals("GET");
+                if (!unsent || !policy.canRetry(attempt) || breaker.isOpen() || !backoff(policy, attempt))
+                    throw e;
+                continue;
+            }
+
+            int resCode = response.getStatus();
+            if (resCode == 415 && compressed) {
+                // An older Marco that can't inflate requests, send them as
+                // they are from now on
+                logger.info("Marco doesn't accept compressed requests, sending them uncompressed");
+                compressRequests = false;
+                compressed = false;
+                response.close();
+                sent = body;
+                sentHeaders = headers;
+                --attempt;
+                continue;
+            }
+            if (resCode == 502 || resCode == 503 || resCode == 504) {
+                // A proxy answered because Marco didn't
+                breaker.recordFailure();
+                metrics.counter("polo_http_failures_total", "endpoint", path).increment();
+                if (policy.canRetry(attempt) && !breaker.isOpen()) {
+                    response.close();
+                    if (backoff(policy, attempt))
+                        continue;
+                    throw new ConnectException("Interrupted while waiting to retry " + endpoint);
+                }
+            } else {
+                breaker.recordSuccess();
+            }
+            return response;
+        }
+    }
+
+    private static byte[] gzip(byte[] body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out, 8192)) {
+            gzip.write(body);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Wait before retrying a request.
+     * @return boolean False if the thread was interrupted
+     */
+    private boolean backoff(RetryPolicy policy, int attempt) {
+        try {
+            Thread.sleep(policy.getDelay(attempt));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Check whether Marco is back, for the circuit breaker.
+     * @return boolean True if Marco answered at all
+     */
+    private boolean probe() {
+        try (HttpResponse response = pool.request("GET", "/vibeCheck", null)) {
+            return response.getStatus() < 500;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void logConnectFailure(ConnectException e) {
+        // The circuit breaker logs when Marco goes down and comes back, so
+        // each failure is only worth a debug line
+        if (!(e instanceof CircuitBreaker.OpenException))
+            logger.debug("Couldn't reach Marco: {}", e.getMessage());
+    }
+
+    /**
+     * Get new events from Marco, waiting for some to arrive if there aren't
+     * any yet. Versions of Marco that don't support long polling respond
+     * straight away, see isLongPolling().
+     *
+     * If Marco tagged the last events it returned, the tag is sent back so
+     * that when nothing has happened since Marco can answer 304 with no body
+     * at all, which is then not parsed.
+     */
+    @Override
+    public boolean receive(int wait, Consumer<JSONObject> handler) {
+        String endpoint = wait > 0 ? "/events?wait=" + wait : "/events";
+        // Allow for the time Marco may hold the request on top of the usual
+        // time to respond
+        String tag = eventsTag;
+        String headers = tag != null ? "If-None-Match: " + tag + "\r\n" : null;
+        try (HttpResponse response = request("GET", endpoint, null, wait + 10000, headers)) {
+            if (wait > 0)
+                longPolling = response.getHeader("x-long-poll") != null;
+            if (response.getStatus() == 304)
+                return true;
+            if (response.getStatus() != 200) {
+                readResponse(response, "/events", true);
+                return false;
+            }
+
+            // Handle each event as soon as it has been read, rather than
+            // once the whole response has
+            Reader body = new InputStreamReader(response.getBody(), StandardCharsets.UTF_8);
+            new EventStreamReader(body).read(handler);
+            eventsTag = response.getHeader("etag");
+            return true;
+        } catch (ConnectException e) {
+            logConnectFailure(e);
+            return false;
+        } catch (IOException | JSONException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Whether the last request for events with a wait was held open by
+     * Marco until there were events to return.
+     */
+    @Override
+    public boolean isLongPolling() {
+        return longPolling;
+    }
+
+    /**
+     * Log the connection pool utilisation and close idle connections to
+     * Marco.
+     */
+    @Override
+    public void close() {
+        logger.info("Closing connections to Marco, pool: {}", pool.getStats());
+        pool.close();
+    }
+
+    /**
+     * Describe the utilisation of the connection pool.
+     * @return String Summary of pool statistics
+     */
+    public String getPoolStats() {
+        return pool.getStats();
+    }
+
+    /**
+     * Get the circuit breaker, which other transports to the same Marco
+     * share.
+     * @return CircuitBreaker The breaker
+     */
+    public CircuitBreaker getBreaker() {
+        return breaker;
+    }
+
+    public JSONObject doRequest(String method, String endpoint, String body, Boolean expectJSON) {
+        byte[] bytes = null;
+        if (!method.equals("GET") && body != null)
+            bytes = body.getBytes(StandardCharsets.UTF_8);
+
+        // The response is always closed, which drains it and hands the
+        // connection back to the pool
+        try (HttpResponse response = request(method, endpoint, bytes, HttpConnectionPool.READ_TIMEOUT, null)) {
+            return readResponse(response, endpoint, expectJSON);
+        } catch (ConnectException e) {
+            logConnectFailure(e);
+            return null;
+        } catch (IOException | JSONException | NullPointerException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private JSONObject readResponse(HttpResponse response, String endpoint, boolean expectJSON)
+            throws IOException {
+        int resCode = response.getStatus();
+
+        if (resCode != 404) {
+            InputStream stream = null;
+            if (resCode != 200) {
+                logger.warn("An error has occurred: " + resCode);
+                stream = response.getBody();
+            } else if (expectJSON) {
+                stream = response.getBody();
+            }
+
+            if (stream != null) {
+                JSONTokener parsing = new JSONTokener(new InputStreamReader(stream, StandardCharsets.UTF_8));
+                JSONObject parsed = new JSONObject(parsing);
+
+                if (resCode != 200) {
+                    logger.warn(parsed.getString("error"));
+                    logger.warn(parsed.getString("message"));
+                    return null;
+                }
+
+                return parsed;
+            } else {
+                return null;
+            }
+        } else {
+            logger.error("An invalid endpoint {} was called for.", endpoint);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package dev.dhdf.polo.webclient;
+
+import dev.dhdf.polo.types.MCEvent;
+import dev.dhdf.polo.types.MCMessage;
+import dev.dhdf.polo.util.RingBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * This sends outbound events to Marco from a fixed number of threads.
+ *
+ * Events are queued in a bounded lock-free ring buffer, so however slow Marco
+ * is the memory and threads used stay the same, and the OverflowPolicy
+ * decides what gives when the queue fills up. Each sender gathers events into
+ * a batch, which is sent as soon as it is full or once the first event in it
+ * has waited for the linger time.
+ */
+public class OutboundDispatcher {
+    private final Logger logger = LoggerFactory.getLogger(OutboundDispatcher.class);
+    private final WebClient client;
+    private final RingBuffer<MCEvent> queue;
+    private final OverflowPolicy policy;
+    // Chat is dropped under DROP_CHAT once this many events are queued
+    private final int chatLimit;
+    private final int maxBatch;
+    private final long lingerNanos;
+    private final Thread[] senders;
+    private final AtomicInteger idleSenders = new AtomicInteger();
+    private volatile boolean running;
+
+    // Statistics
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    // Of those dropped, events of any type pushed out under DROP_CHAT
+    private final AtomicLong evicted = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param client   The client that delivers each batch
+     * @param capacity Maximum number of queued events
+     * @param threads  Number of sender threads. More than one may reorder
+     *                 events.
+     * @param policy   What to do with events when the queue is full
+     * @param maxBatch Maximum number of events in a batch
+     * @param linger   Maximum time an event waits for a batch to fill (ms)
+     */
+    public OutboundDispatcher(WebClient client, int capacity, int threads,
+                              OverflowPolicy policy, int maxBatch, long linger) {
+        this.client = client;
+        this.queue = new RingBuffer<>(Math.max(capacity, 2));
+        this.policy = policy;
+        this.chatLimit = queue.capacity() - queue.capacity() / 4;
+        this.maxBatch = Math.max(maxBatch, 1);
+        this.lingerNanos = maxBatch > 1 ? TimeUnit.MILLISECONDS.toNanos(linger) : 0;
+        this.running = true;
+
+        this.senders = new Thread[Math.max(threads, 1)];
+        for (int i = 0; i < senders.length; ++i) {
+            senders[i] = new Thread(this::run, "Polo event sender #" + (i + 1));
+            senders[i].setDaemon(true);
+            senders[i].start();
+        }
+    }
+
+    /**
+     * Queue an event to be sent to Marco.
+     * @param event The event
+     * @return boolean False if the event was dropped
+     */
+    public boolean submit(MCEvent event) {
+        submitted.incrementAndGet();
+        boolean queued;
+        switch (policy) {
+        case DROP_OLDEST:
+            while (!queue.offer(event)) {
+                if (queue.poll() != null)
+                    onDrop();
+            }
+            queued = true;
+            break;
+        case BLOCK:
+            while (!queue.offer(event) && running)
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(1));
+            queued = running;
+            break;
+        case DROP_CHAT:
+        default:
+            if (event instanceof MCMessage && queue.size() >= chatLimit) {
+                queued = false;
+            } else {
+                // Membership events may use the whole queue, and only push
+                // out the oldest events once even that is full. The ring
+                // buffer can only give up its oldest event, which needn't be
+                // chat, so these are counted apart from chat being refused.
+                while (!queue.offer(event)) {
+                    if (queue.poll() != null) {
+                        evicted.incrementAndGet();
+                        onDrop();
+                    }
+                }
+                queued = true;
+            }
+            break;
+        }
+
+        if (!queued) {
+            onDrop();
+            return false;
+        }
+        if (idleSenders.get() > 0) {
+            for (Thread sender : senders)
+                LockSupport.unpark(sender);
+        }
+        return true;
+    }
+
+    private void onDrop() {
+        // Don't flood the log during an outage
+        long count = dropped.incrementAndGet();
+        if (count == 1 || count % 1000 == 0)
+            logger.warn("Outbound event queue is full, dropping events ({} dropped so far)", count);
+    }
+
+    private void run() {
+        List<MCEvent> batch = new ArrayList<>(maxBatch);
+        while (running || !queue.isEmpty()) {
+            MCEvent first = queue.poll();
+            if (first == null) {
+                await(TimeUnit.SECONDS.toNanos(1));
+                // Use the quiet time to send anything Marco missed
+                if (queue.isEmpty() && running)
+                    client.replayOutbox();
+                continue;
+            }
+            batch.add(first);
+
+            // Give the batch a moment to fill up
+            long deadline = System.nanoTime() + lingerNanos;
+            while (batch.size() < maxBatch) {
+                MCEvent next = queue.poll();
+                if (next != null) {
+                    batch.add(next);
+                    continue;
+                }
+                long wait = deadline - System.nanoTime();
+                if (wait <= 0 || !running)
+                    break;
+                await(wait);
+            }
+
+            try {
+                client.deliver(batch);
+            } catch (Exception e) {
+                logger.warn("Exception while sending a batch of {} events", batch.size());
+                e.printStackTrace();
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Wait for an event to be queued.
+     * @param nanos Maximum time to wait
+     */
+    private void await(long nanos) {
+        idleSenders.incrementAndGet();
+        // Check again now that producers know to wake us up
+        if (queue.isEmpty() && running)
+            LockSupport.parkNanos(this, nanos);
+        idleSenders.decrementAndGet();
+    }
+
+    /**
+     * Send whatever is still queued and stop the sender threads.
+     */
+    public void close() {
+        running = false;
+        for (Thread sender : senders)
+            LockSupport.unpark(sender);
+        for (Thread sender : senders) {
+            try {
+                sender.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Get the number of events waiting to be sent.
+     * @return int Queue depth
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public int getQueueCapacity() {
+        return queue.capacity();
+    }
+
+    public long getSubmittedCount() {
+        return submitted.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Get the number of queued events that were dropped to make room for
+     * membership events under DROP_CHAT, which may be membership events too.
+     * @return long Number of events, included in getDroppedCount()
+     */
+    public long getEvictedCount() {
+        return evicted.get();
+    }
+
+    /**
+     * Describe the state of the queue.
+     * @return String Summary of queue statistics
+     */
+    public String getStats() {
+        return String.format("%d/%d queued, %d submitted, %d dropped (%s), %d pushed out by membership events",
+                getQueueDepth(), getQueueCapacity(), getSubmittedCount(), getDroppedCount(), policy,
+                getEvictedCount());
+    }
+}
@@ -0,0 +1,317 @@
+package dev.dhdf.polo.webclient;
+
+import dev.dhdf.polo.types.MCEvent;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+
+/**
+ * An append-only journal of events that couldn't be delivered to Marco, kept
+ * in a memory-mapped file so they survive a restart of the server as well as
+ * an outage of Marco.
+ *
+ * The file starts with a header holding the read and write positions,
+ * followed by records of [length, time queued, type \n endpoint \n JSON].
+ * Records before the read position have been acknowledged by Marco. Once
+ * they all have, both positions go back to the start; otherwise the
+ * unacknowledged records are moved to the start when room is needed. If
+ * there still isn't room, or records are older than the retention time, the
+ * oldest are discarded.
+ */
+public class Outbox {
+    private static final int MAGIC = 0x504f4c4f; // POLO
+    private static final int VERSION = 1;
+    private static final int HEADER = 32;
+    private static final int READ_POS = 8;
+    private static final int WRITE_POS = 16;
+    private static final int RECORD_HEADER = 4 + 8;
+
+    private final Logger logger = LoggerFactory.getLogger(Outbox.class);
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final long retention;
+    private int readPos;
+    private int writePos;
+    private long discarded;
+
+    /**
+     * Open the journal, creating it if needed.
+     * @param path      The journal file
+     * @param capacity  Maximum size of the journal (bytes)
+     * @param retention How long undelivered events are kept (ms)
+     * @throws IOException if the file couldn't be mapped
+     */
+    public Outbox(File path, int capacity, long retention) throws IOException {
+        File parent = path.getParentFile();
+        if (parent != null)
+            parent.mkdirs();
+        this.file = new RandomAccessFile(path, "rw");
+        this.capacity = Math.max(capacity, HEADER + 1024);
+        this.retention = retention;
+        this.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, this.capacity);
+        this.discarded = 0;
+
+        readPos = buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION ? (int) buffer.getLong(READ_POS) : -1;
+        writePos = readPos >= 0 ? (int) buffer.getLong(WRITE_POS) : -1;
+        if (readPos < HEADER || writePos < readPos || writePos > this.capacity) {
+            // New, resized or corrupt, start afresh
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            readPos = writePos = HEADER;
+            storePositions();
+        } else if (!isEmpty()) {
+            logger.info("{} events from before the restart waiting to be sent to Marco", count());
+        }
+    }
+
+    /**
+     * Whether every journalled event has been delivered.
+     * @return boolean True if there is nothing to replay
+     */
+    public synchronized boolean isEmpty() {
+        return readPos == writePos;
+    }
+
+    /**
+     * Get the number of events waiting to be replayed.
+     * @return int Number of events
+     */
+    public synchronized int count() {
+        int count = 0;
+        int pos = readPos;
+        while (pos < writePos) {
+            int end = next(pos);
+            if (end == pos)
+                break;
+            pos = end;
+            ++count;
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of events discarded because of the size cap or
+     * retention time.
+     * @return long Number of events
+     */
+    public synchronized long getDiscardedCount() {
+        return discarded;
+    }
+
+    /**
+     * Add events to the end of the journal.
+     * @param events The events, in order
+     */
+    public synchronized void append(List<MCEvent> events) {
+        int dropped = 0;
+        for (MCEvent event : events) {
+            byte[] prefix = (event.getType() + "\n" + event.getEndpoint() + "\n").getBytes(StandardCharsets.UTF_8);
+            byte[] json = event.toBytes();
+            int length = RECORD_HEADER + prefix.length + json.length;
+            if (length > capacity - HEADER) {
+                logger.warn("Event too large for the outbox, dropping it");
+                ++discarded;
+                continue;
+            }
+
+            if (writePos + length > capacity) {
+                compact();
+                // Make room by discarding the oldest events
+                while (writePos + length > capacity) {
+                    readPos = next(readPos);
+                    ++dropped;
+                    compact();
+                }
+            }
+
+            buffer.putInt(writePos, prefix.length + json.length);
+            buffer.putLong(writePos + 4, System.currentTimeMillis());
+            ByteBuffer slot = buffer.duplicate();
+            slot.position(writePos + RECORD_HEADER);
+            slot.put(prefix);
+            slot.put(json);
+            writePos += length;
+        }
+        storePositions();
+
+        if (dropped > 0) {
+            discarded += dropped;
+            logger.warn("Outbox is full, discarded the {} oldest events", dropped);
+        }
+    }
+
+    /**
+     * Replay journalled events in order, acknowledging each batch that is
+     * delivered, until the journal is empty or delivery fails.
+     * @param deliver  Delivers a batch, returning how many of its events
+     *                 (from the start) reached Marco
+     * @param maxBatch Maximum number of events per batch
+     * @return boolean Whether the whole journal was delivered
+     */
+    public synchronized boolean replay(ToIntFunction<List<MCEvent>> deliver, int maxBatch) {
+        // Records are in the order they were queued, so any that have
+        // expired are at the head
+        long expiry = System.currentTimeMillis() - retention;
+        int expired = 0;
+        while (!isEmpty()) {
+            int end = next(readPos);
+            if (end == readPos || buffer.getLong(readPos + 4) >= expiry)
+                break;
+            readPos = end;
+            ++expired;
+        }
+        if (expired > 0) {
+            discarded += expired;
+            logger.warn("{} events were too old to send to Marco and were discarded", expired);
+        }
+
+        List<MCEvent> batch = new ArrayList<>();
+        List<Integer> ends = new ArrayList<>();
+        while (!isEmpty()) {
+            // Read the next batch without acknowledging it yet
+            batch.clear();
+            ends.clear();
+            int pos = readPos;
+            while (pos < writePos && batch.size() < Math.max(maxBatch, 1)) {
+                int end = next(pos);
+                if (end == pos)
+                    break;
+                int length = end - pos - RECORD_HEADER;
+                byte[] payload = new byte[length];
+                ByteBuffer slot = buffer.duplicate();
+                slot.position(pos + RECORD_HEADER);
+                slot.get(payload);
+                batch.add(new StoredEvent(new String(payload, StandardCharsets.UTF_8)));
+                ends.add(end);
+                pos = end;
+            }
+            if (batch.isEmpty())
+                break;
+
+            int delivered = deliver.applyAsInt(batch);
+            if (delivered > 0) {
+                readPos = ends.get(delivered - 1);
+                storePositions();
+            }
+            if (delivered < batch.size())
+                break;
+        }
+
+        if (isEmpty()) {
+            // Everything has been acknowledged, start again at the top
+            readPos = writePos = HEADER;
+        }
+        storePositions();
+        return isEmpty();
+    }
+
+    /**
+     * Find the end of a record. If its length doesn't fit between it and the
+     * write position the journal is corrupt from there on, so the rest of it
+     * is discarded.
+     * @param pos The start of the record, before the write position
+     * @return int The start of the next record, or pos if it was discarded
+     */
+    private int next(int pos) {
+        int length = writePos - pos >= RECORD_HEADER ? buffer.getInt(pos) : -1;
+        if (length <= 0 || length > writePos - pos - RECORD_HEADER) {
+            logger.warn("Outbox is corrupt, discarding the rest of it");
+            writePos = pos;
+            storePositions();
+            return pos;
+        }
+        return pos + RECORD_HEADER + length;
+    }
+
+    /**
+     * Move the unacknowledged records to the start of the journal.
+     */
+    private void compact() {
+        if (readPos == HEADER)
+            return;
+        int length = writePos - readPos;
+        ByteBuffer src = buffer.duplicate();
+        src.position(readPos).limit(writePos);
+        ByteBuffer dst = buffer.duplicate();
+        dst.position(HEADER);
+        if (length > 0) {
+            byte[] records = new byte[length];
+            src.get(records);
+            dst.put(records);
+        }
+        readPos = HEADER;
+        writePos = HEADER + length;
+        storePositions();
+    }
+
+    private void storePositions() {
+        buffer.putLong(READ_POS, readPos);
+        buffer.putLong(WRITE_POS, writePos);
+    }
+
+    /**
+     * Flush the journal to disk and close it.
+     */
+    public synchronized void close() {
+        buffer.force();
+        try {
+            file.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * An event read back from the journal.
+     */
+    static class StoredEvent extends MCEvent {
+        private final String type;
+        private final String endpoint;
+        private final String json;
+
+        StoredEvent(String record) {
+            int first = record.indexOf('\n');
+            int second = record.indexOf('\n', first + 1);
+            this.type = record.substring(0, first);
+            this.endpoint = record.substring(first + 1, second);
+            this.json = record.substring(second + 1);
+        }
+
+        @Override
+        public String getType() {
+            return type;
+        }
+
+        @Override
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        @Override
+        public JSONObject toJSON() {
+            return new JSONObject(json);
+        }
+
+        @Override
+        public byte[] toBytes() {
+            return json.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String toString() {
+            return json;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package dev.dhdf.polo.webclient;
+
+import java.util.Locale;
+
+/**
+ * What the outbound dispatcher does with new events while its queue is full,
+ * which happens when Marco is slow or down.
+ */
+public enum OverflowPolicy {
+    /**
+     * Discard the oldest queued event to make room.
+     */
+    DROP_OLDEST,
+    /**
+     * Discard chat messages once the queue is mostly full, keeping the rest
+     * of it for joins, quits, kicks and deaths so the membership of the
+     * Matrix room stays right.
+     */
+    DROP_CHAT,
+    /**
+     * Make the caller wait for room. This can stall the server thread, only
+     * use it if no event may ever be lost.
+     */
+    BLOCK;
+
+    /**
+     * Read a policy from the config.
+     * @param name Policy name, e.g. drop-chat
+     * @return OverflowPolicy The policy, DROP_CHAT if the name is unknown
+     */
+    public static OverflowPolicy fromString(String name) {
+        try {
+            return valueOf(name.trim().replace('-', '_').toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException | NullPointerException e) {
+            return DROP_CHAT;
+        }
+    }
+}
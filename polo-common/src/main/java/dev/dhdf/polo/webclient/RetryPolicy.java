@@ -0,0 +1,87 @@
+package dev.dhdf.polo.webclient;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/**
+ * How often, and how far apart, a request to Marco is attempted.
+ *
+ * Attempts are spaced with jittered exponential backoff: the n-th retry waits
+ * a random time between half and all of baseDelay * 2^(n-1), capped at
+ * maxDelay, so that after an outage servers don't all retry in step.
+ */
+public class RetryPolicy {
+    /**
+     * Try once, leaving retries to the caller (e.g. the next sync run).
+     */
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0);
+    /**
+     * Posted chat messages.
+     */
+    public static final RetryPolicy EVENT = new RetryPolicy(3, 250, 2000);
+    /**
+     * Posted membership changes and batches, which may contain them. Losing
+     * these leaves the room out of step with the server, so they are worth
+     * waiting a little longer for.
+     */
+    public static final RetryPolicy MEMBERSHIP = new RetryPolicy(4, 250, 4000);
+
+    private final int maxAttempts;
+    private final long baseDelay;
+    private final long maxDelay;
+
+    /**
+     * Constructor.
+     * @param maxAttempts Maximum number of attempts, including the first
+     * @param baseDelay   Maximum wait before the first retry (ms)
+     * @param maxDelay    Maximum wait before any retry (ms)
+     */
+    public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay) {
+        this.maxAttempts = Math.max(maxAttempts, 1);
+        this.baseDelay = Math.max(baseDelay, 0);
+        this.maxDelay = Math.max(maxDelay, this.baseDelay);
+    }
+
+    /**
+     * Get the policy for requests to an endpoint.
+     * @param method   HTTP method
+     * @param endpoint Path of the endpoint, optionally with a query
+     * @return RetryPolicy The policy
+     */
+    public static RetryPolicy forEndpoint(String method, String endpoint) {
+        if (method.equals("GET")) {
+            // Polls and vibe checks are repeated by their callers anyway
+            return NONE;
+        }
+        if (endpoint.startsWith("/player/") || endpoint.equals("/batch"))
+            return MEMBERSHIP;
+        return EVENT;
+    }
+
+    /**
+     * Whether another attempt may be made.
+     * @param attempt Number of attempts made so far
+     * @return boolean True if there are attempts left
+     */
+    public boolean canRetry(int attempt) {
+        return attempt < maxAttempts;
+    }
+
+    /**
+     * Get the time to wait before the next attempt.
+     * @param attempt Number of attempts made so far, at least 1
+     * @return long Delay (ms)
+     */
+    public long getDelay(int attempt) {
+        if (baseDelay == 0)
+            return 0;
+        long ceiling = baseDelay << Math.min(attempt - 1, 20);
+        ceiling = Math.min(ceiling, maxDelay);
+        // Jitter within the upper half so a retry is never immediate
+        return ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+}
@@ -0,0 +1,43 @@
+package dev.dhdf.polo.webclient;
+
+import dev.dhdf.polo.types.MCEvent;
+import org.json.JSONObject;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+
+/**
+ * A way of exchanging events with Marco. Outbound events use the JSON of
+ * MCEvent.toJSON() and inbound events the entries of Marco's /events
+ * response, whichever transport carries them.
+ */
+public interface Transport {
+    /**
+     * Deliver outbound events to Marco.
+     * @param events The events to deliver, in order
+     * @return int How many of the events, from the start, reached Marco
+     */
+    public int deliver(List<MCEvent> events);
+
+    /**
+     * Receive new events from Marco, waiting for some to arrive if there
+     * aren't any yet.
+     * @param wait    How long to wait for events (ms), or 0 not to wait
+     * @param handler Called with each event, in order
+     * @return boolean Whether Marco could be reached
+     */
+    public boolean receive(int wait, Consumer<JSONObject> handler);
+
+    /**
+     * Whether the last receive() waited for events to arrive, so it can be
+     * called again straight away.
+     * @return boolean True if receiving blocks until there are events
+     */
+    public boolean isLongPolling();
+
+    /**
+     * Close the transport's connections to Marco.
+     */
+    public void close();
+}
@@ -1,24 +1,29 @@
 package dev.dhdf.polo.webclient;
 
 import dev.dhdf.polo.PoloPlugin;
+import dev.dhdf.polo.metrics.Metrics;
+import dev.dhdf.polo.metrics.MetricsMBean;
+import dev.dhdf.polo.metrics.PrometheusWriter;
+import dev.dhdf.polo.types.MCEvent;
 import dev.dhdf.polo.types.MCMessage;
 import dev.dhdf.polo.types.MCJoin;
 import dev.dhdf.polo.types.MCQuit;
 import dev.dhdf.polo.types.MCKick;
 import dev.dhdf.polo.types.MCDeath;
+import dev.dhdf.polo.types.MatrixMessage;
+import dev.dhdf.polo.types.MatrixModeration;
 import dev.dhdf.polo.types.PoloPlayer;
 import org.json.JSONArray;
-import org.json.JSONException;
 import org.json.JSONObject;
-import org.json.JSONTokener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStreamWriter;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.UUID;
 
 
@@ -29,13 +34,65 @@ import java.util.UUID;
  * events that occurred (which is only chat messages at the moment)
  */
 public class WebClient {
+    // How often to check whether Marco is back to replay the outbox (ms)
+    private static final long OUTBOX_PROBE_INTERVAL = 5000;
+
     private final Logger logger = LoggerFactory.getLogger(WebClient.class);
     private final Config config;
     private final PoloPlugin plugin;
+    private final HttpTransport http;
+    private final OutboundDispatcher dispatcher;
+    private final Outbox outbox;
+    private final AtomicLong received = new AtomicLong();
+    private final EventRegistry events = new EventRegistry();
+    private final Metrics metrics = Metrics.get();
+    private final PrometheusWriter metricsWriter;
+    private Transport transport;
+    private long nextOutboxProbe;
 
     public WebClient(PoloPlugin plugin, Config config) {
         this.config = config;
         this.plugin = plugin;
+        // HTTP is always needed for the vibe check and the legacy endpoints
+        this.http = new HttpTransport(config);
+        if (config.transport.equals("websocket"))
+            this.transport = new WebSocketTransport(config, http.getBreaker());
+        else
+            this.transport = http;
+
+        this.outbox = openOutbox();
+        this.nextOutboxProbe = 0;
+        this.dispatcher = new OutboundDispatcher(this, config.queueCapacity, config.senderThreads,
+                OverflowPolicy.fromString(config.overflowPolicy),
+                config.batchSize, config.batchLinger);
+
+        for (MatrixMessage.Kind kind : MatrixMessage.Kind.values())
+            events.register(kind.type, MatrixMessage::fromJSON, this::onRoomMessage);
+        for (MatrixModeration.Action action : MatrixModeration.Action.values())
+            events.register(action.type, MatrixModeration::fromJSON, this::onModeration);
+
+        metrics.gauge("polo_queue_depth", dispatcher::getQueueDepth);
+        metrics.gauge("polo_queue_capacity", dispatcher::getQueueCapacity);
+        metrics.gauge("polo_events_dropped", dispatcher::getDroppedCount);
+        metrics.gauge("polo_events_evicted", dispatcher::getEvictedCount);
+        metrics.gauge("polo_breaker_open", () -> http.getBreaker().isOpen() ? 1 : 0);
+        MetricsMBean.register(metrics);
+        if (config.metricsInterval > 0) {
+            this.metricsWriter = new PrometheusWriter(plugin, metrics,
+                    TimeUnit.SECONDS.toMillis(config.metricsInterval));
+            metricsWriter.start();
+        } else {
+            this.metricsWriter = null;
+        }
+    }
+
+    /**
+     * Get the handlers of events from Marco, to handle more types of event.
+     *
+     * @return EventRegistry The handlers by event type
+     */
+    public EventRegistry getEventRegistry() {
+        return events;
     }
 
     /**
@@ -50,17 +107,7 @@ public class WebClient {
             return;
 
         MCJoin join = new MCJoin(player);
-        String body = join.toString();
-
-        // Run communication outside the server thread
-        plugin.executeAsync(() ->
-                this.doRequest(
-                        "POST",
-                        "/player/join",
-                        body,
-                        false
-                )
-        );
+        send(join);
     }
 
     /**
@@ -74,17 +121,7 @@ public class WebClient {
             return;
 
         MCQuit quit = new MCQuit(player);
-        String body = quit.toString();
-
-        // Run communication outside the server thread
-        plugin.executeAsync(() ->
-                this.doRequest(
-                        "POST",
-                        "/player/quit",
-                        body,
-                        false
-                )
-        );
+        send(quit);
     }
 
     /**
@@ -99,17 +136,7 @@ public class WebClient {
             return;
 
         MCKick kick = new MCKick(player, reason);
-        String body = kick.toString();
-
-        // Run communication outside the server thread
-        plugin.executeAsync(() ->
-                this.doRequest(
-                        "POST",
-                        "/player/kick",
-                        body,
-                        false
-                )
-        );
+        send(kick);
     }
 
     /**
@@ -124,17 +151,7 @@ public class WebClient {
             return;
 
         MCDeath death = new MCDeath(player, message);
-        String body = death.toString();
-
-        // Run communication outside the server thread
-        plugin.executeAsync(() ->
-                this.doRequest(
-                        "POST",
-                        "/player/death",
-                        body,
-                        false
-                )
-        );
+        send(death);
     }
 
     /**
@@ -146,17 +163,111 @@ public class WebClient {
      */
     public void postChat(PoloPlayer player, String context) {
         MCMessage message = new MCMessage(player, context);
-        String body = message.toString();
-
-        // Run communication outside the server thread
-        plugin.executeAsync(() ->
-                this.doRequest(
-                        "POST",
-                        "/chat",
-                        body,
-                        false
-                )
-        );
+        send(message);
+    }
+
+    /**
+     * Queue an event to be sent to Marco outside the server thread.
+     *
+     * @param event The event to send
+     */
+    private void send(MCEvent event) {
+        metrics.counter("polo_events_sent_total", "type", event.getType()).increment();
+        dispatcher.submit(event);
+    }
+
+    /**
+     * Deliver a batch of events to Marco. Events that can't be delivered are
+     * kept in the outbox until Marco is back.
+     *
+     * @param events The events to deliver, in order
+     */
+    public void deliver(List<MCEvent> events) {
+        // New events have to wait behind the ones Marco missed
+        if (outbox != null && !outbox.isEmpty() && !replayOutbox()) {
+            outbox.append(events);
+            return;
+        }
+
+        int delivered = getTransport().deliver(events);
+        metrics.counter("polo_events_delivered_total").add(delivered);
+        if (delivered < events.size()) {
+            metrics.counter("polo_events_undelivered_total").add(events.size() - delivered);
+            if (outbox != null)
+                outbox.append(events.subList(delivered, events.size()));
+        }
+    }
+
+    /**
+     * Deliver the events Marco missed while it was unreachable, once it
+     * passes the vibe check again. Marco is only checked every few seconds.
+     *
+     * @return boolean Whether the outbox is now empty
+     */
+    public synchronized boolean replayOutbox() {
+        if (outbox == null || outbox.isEmpty())
+            return true;
+
+        long now = System.currentTimeMillis();
+        if (now < nextOutboxProbe)
+            return false;
+        nextOutboxProbe = now + OUTBOX_PROBE_INTERVAL;
+        if (!vibeCheck())
+            return false;
+
+        int count = outbox.count();
+        if (!outbox.replay(batch -> getTransport().deliver(batch), config.batchSize))
+            return false;
+        logger.info("Sent {} events from while Marco was unreachable", count);
+        return true;
+    }
+
+    private Outbox openOutbox() {
+        if (config.outboxSize <= 0)
+            return null;
+        try {
+            return new Outbox(new File(plugin.getDataFolder(), "outbox.dat"),
+                    config.outboxSize * 1024,
+                    TimeUnit.MINUTES.toMillis(config.outboxRetention));
+        } catch (IOException e) {
+            logger.warn("Couldn't open the outbox, events will be lost while Marco is unreachable: {}",
+                    e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Get the transport used to exchange events with Marco, falling back to
+     * HTTP if Marco has refused a WebSocket.
+     *
+     * @return Transport The transport
+     */
+    private synchronized Transport getTransport() {
+        if (transport instanceof WebSocketTransport && !((WebSocketTransport) transport).isSupported()) {
+            logger.warn("Marco doesn't support websockets, using HTTP instead");
+            closeTransport();
+            transport = http;
+        }
+        return transport;
+    }
+
+    /**
+     * Close the transport, keeping the events Marco didn't acknowledge in the
+     * outbox.
+     */
+    private void closeTransport() {
+        if (transport == http)
+            return;
+        transport.close();
+        if (transport instanceof WebSocketTransport) {
+            List<MCEvent> unacked = ((WebSocketTransport) transport).takeUnacked();
+            if (!unacked.isEmpty()) {
+                if (outbox != null)
+                    outbox.append(unacked);
+                else
+                    logger.warn("{} events unacknowledged by Marco were lost", unacked.size());
+            }
+        }
     }
 
     /**
@@ -176,6 +287,8 @@ public class WebClient {
         // Send all the new messages to the minecraft chat
         for (int i = 0; i < messages.length(); ++i) {
             String message = messages.getString(i);
+            received.incrementAndGet();
+            metrics.counter("polo_events_received_total", "type", "chat").increment();
             onRoomMessage(message, null);
         }
 
@@ -186,130 +299,82 @@ public class WebClient {
      * Get new events from Marco and the Matrix room
      */
     public boolean getEvents() {
-        JSONObject eventsResponse = this.doRequest(
-                "GET",
-                "/events",
-                null,
-                true
-        );
-        if (eventsResponse == null)
-            return false;
-        JSONArray events = eventsResponse.getJSONArray("events");
-
-        for (int i = 0; i < events.length(); ++i) {
-            JSONObject event = events.getJSONObject(i);
-            String type = event.getString("type");
-            try {
-                handleEvent(type, event);
-            } catch (Exception e) {
-                logger.warn("Exception while handling matrix event type '{}'", type);
-                e.printStackTrace();
-            }
-        }
+        return getEvents(0);
+    }
 
-        return true;
+    /**
+     * Get new events from Marco and the Matrix room, waiting for some to
+     * arrive if there aren't any yet. Versions of Marco that don't support
+     * long polling respond straight away, see isLongPolling().
+     *
+     * @param wait How long Marco may hold the request open (ms), or 0 not to
+     *             wait at all
+     */
+    public boolean getEvents(int wait) {
+        return getTransport().receive(wait, this::onEvent);
     }
 
-    private void handleEvent(String type, JSONObject event) {
-        JSONObject sender = event.getJSONObject("sender");
-        String senderDisplayName = sender.getString("displayName");
-        String reason = null;
-        switch (type) {
-            case "message.text":
-            case "message.emote":
-            case "message.announce":
-                String body = event.getString("body");
-                Object json = event.opt("bodyJson");
-                if (json == null)
-                    json = body;
-
-                JSONObject inlineBlock = new JSONObject();
-                inlineBlock.put("type", "block");
-                inlineBlock.put("block", "inline");
-                inlineBlock.put("content", json);
-                json = inlineBlock;
-
-                switch (type) {
-                    case "message.text": {
-                        body = "<" + senderDisplayName + "> " + body;
-
-                        JSONArray newJson = new JSONArray();
-                        newJson.put("<");
-
-                        JSONObject senderMention = new JSONObject();
-                        senderMention.put("type", "mention");
-                        senderMention.put("user", sender);
-                        senderMention.put("content", senderDisplayName);
-                        newJson.put(senderMention);
-
-                        newJson.put("> ");
-                        newJson.put(json);
-                        json = newJson;
-                        break;
-                    }
-                    case "message.emote": {
-                        body = " * <" + senderDisplayName + "> " + body;
-
-                        JSONArray newJson = new JSONArray();
-                        newJson.put(" * <");
-
-                        JSONObject senderMention = new JSONObject();
-                        senderMention.put("type", "mention");
-                        senderMention.put("user", sender);
-                        senderMention.put("content", senderDisplayName);
-                        newJson.put(senderMention);
-
-                        newJson.put("> ");
-                        newJson.put(json);
-                        json = newJson;
-                        break;
-                    }
-                    case "message.announce": {
-                        body = "[Server]" + body;
-
-                        JSONArray newJson = new JSONArray();
-                        newJson.put("[Server] ");
-                        newJson.put(json);
-                        json = newJson;
-                        break;
-                    }
-                }
-                onRoomMessage(body, json);
-                break;
+    /**
+     * Whether the last request for events with a wait was held open until
+     * there were events to return.
+     *
+     * @return boolean True if Marco supports long polling
+     */
+    public boolean isLongPolling() {
+        return getTransport().isLongPolling();
+    }
 
-            case "player.kick":
-            case "player.ban":
-                // reason is optional
-                if (event.has("reason"))
-                    reason = event.getString("reason");
-                // Fall-through
-            case "player.unban":
-                JSONObject player = event.getJSONObject("player");
-                String uuidStr = player.getString("uuid");
-                UUID uuid = PoloPlayer.uuidFromString(uuidStr);
-                switch (type) {
-                    case "player.kick":
-                        onPlayerKick(uuid, reason, senderDisplayName);
-                        break;
-                    case "player.ban":
-                        onPlayerBan(uuid, reason, senderDisplayName);
-                        break;
-                    case "player.unban":
-                        onPlayerUnban(uuid, senderDisplayName);
-                        break;
-                }
-                break;
+    /**
+     * Get the number of events received from Marco so far, which tells the
+     * sync whether the room is active.
+     *
+     * @return long Number of events
+     */
+    public long getReceivedCount() {
+        return received.get();
+    }
 
-            default:
+    private void onEvent(JSONObject event) {
+        received.incrementAndGet();
+        String type = event.getString("type");
+        // Only registered types get their own label, so whatever Marco sends
+        // can't create ever more counters
+        boolean known = true;
+        try {
+            if (!events.dispatch(type, event)) {
+                known = false;
                 logger.warn("Unknown matrix event type '{}' ignored", type);
-                break;
+            }
+        } catch (Exception e) {
+            logger.warn("Exception while handling matrix event type '{}'", type);
+            e.printStackTrace();
         }
+        metrics.counter("polo_events_received_total", "type", known ? type : "unknown").increment();
+    }
+
+    public void onRoomMessage(MatrixMessage message) {
+        onRoomMessage(message.getText(), message);
     }
 
     public void onRoomMessage(String message, Object json) {
         this.plugin.broadcastMessage(message, json);
     }
 
+    public void onModeration(MatrixModeration event) {
+        String source = event.sender.displayName;
+        switch (event.action) {
+            case KICK:
+                onPlayerKick(event.player, event.reason, source);
+                break;
+            case BAN:
+                onPlayerBan(event.player, event.reason, source);
+                break;
+            case UNBAN:
+                onPlayerUnban(event.player, source);
+                break;
+        }
+    }
+
     public void onPlayerKick(UUID uuid, String reason, String source) {
         if (config.relayMatrixKicks) {
             if (reason == null)
@@ -353,61 +418,59 @@ public class WebClient {
         }
     }
 
-    public JSONObject doRequest(String method, String endpoint, String body, Boolean expectJSON) {
-        try {
-            URL url = new URL(
-                    "http://" + config.address + ":" + config.port + endpoint
-            );
+    /**
+     * Send any queued events, then close the connections to Marco.
+     */
+    public void close() {
+        if (metricsWriter != null)
+            metricsWriter.stop();
+        MetricsMBean.unregister();
+        dispatcher.close();
+        // Events the transport still holds go in the outbox before it closes
+        synchronized (this) {
+            closeTransport();
+        }
+        if (outbox != null)
+            outbox.close();
+        http.close();
+        // The gauges would keep this client from being garbage collected
+        metrics.removeGauge("polo_queue_depth");
+        metrics.removeGauge("polo_queue_capacity");
+        metrics.removeGauge("polo_events_dropped");
+        metrics.removeGauge("polo_events_evicted");
+        metrics.removeGauge("polo_breaker_open");
+    }
 
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod(method);
-            connection.setRequestProperty("Authorization", "Bearer " + config.token);
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setRequestProperty("User-Agent", "Marco Spigot Plugin");
-
-            if (!method.equals("GET") && body != null) {
-                connection.setDoOutput(true);
-                OutputStreamWriter writer = new OutputStreamWriter(connection.getOutputStream());
-                writer.write(body);
-                writer.flush();
-                writer.close();
-            }
+    /**
+     * Describe the utilisation of the HTTP connection pool.
+     * @return String Summary of pool statistics
+     */
+    public String getPoolStats() {
+        return http.getPoolStats();
+    }
 
-            int resCode = connection.getResponseCode();
-
-            if (resCode != 404) {
-                InputStream stream = null;
-                if (resCode != 200) {
-                    logger.warn("An error has occurred: " + resCode);
-                    stream = connection.getErrorStream();
-                } else if (expectJSON) {
-                    stream = connection.getInputStream();
-                }
-
-                if (stream != null) {
-                    JSONTokener parsing = new JSONTokener(stream);
-                    JSONObject parsed = new JSONObject(parsing);
-
-                    if (resCode != 200) {
-                        logger.warn(parsed.getString("error"));
-                        logger.warn(parsed.getString("message"));
-                        return null;
-                    }
-
-                    return parsed;
-                } else {
-                    return null;
-                }
-            } else {
-                logger.error("An invalid endpoint {} was called for.", endpoint);
-                return null;
-            }
-        } catch (java.net.ConnectException e) {
-            logger.warn(e.getMessage());
-            return null;
-        } catch (IOException | JSONException | NullPointerException e) {
-            e.printStackTrace();
-            return null;
-        }
+    /**
+     * Describe the state of the outbound event queue.
+     * @return String Summary of queue statistics
+     */
+    public String getQueueStats() {
+        return dispatcher.getStats();
+    }
+
+    /**
+     * Describe the bridge for the stats command: the connection pool, the
+     * queue and then every metric.
+     * @return List<String> Lines of text
+     */
+    public List<String> getStats() {
+        List<String> lines = new ArrayList<>();
+        lines.add("Pool: " + getPoolStats());
+        lines.add("Queue: " + getQueueStats());
+        lines.addAll(metrics.describe());
+        return lines;
+    }
+
+    public JSONObject doRequest(String method, String endpoint, String body, Boolean expectJSON) {
+        return http.doRequest(method, endpoint, body, expectJSON);
     }
 }
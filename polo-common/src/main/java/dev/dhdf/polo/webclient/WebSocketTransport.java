@@ -0,0 +1,541 @@
+package dev.dhdf.polo.webclient;
+
+import dev.dhdf.polo.types.MCEvent;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+
+/**
+ * Exchanges events with Marco in both directions over a single long-lived
+ * WebSocket at /ws.
+ *
+ * Each outbound event is sent as a text message holding its JSON with a
+ * "type" and a sequence number "seq", and is kept until Marco acknowledges
+ * it with {"type": "ack", "seq": n}. Inbound messages are /events entries.
+ * When the connection drops it is reopened with the id of the last event
+ * received (?resume=id) so Marco can send what was missed, and any
+ * unacknowledged events are sent again. Events still unacknowledged when the
+ * transport is closed can be taken back with takeUnacked().
+ */
+public class WebSocketTransport implements Transport {
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int CONNECT_TIMEOUT = 5000;
+    // How often to ping Marco to check an idle connection is still up (ms)
+    private static final long PING_INTERVAL = 30000;
+    private static final int MAX_UNACKED = 1000;
+    // How long close() waits for Marco to acknowledge what was sent (ms)
+    private static final long CLOSE_TIMEOUT = 2000;
+    // Events from Marco waiting to be handled, beyond which the reader stops
+    // reading so that Marco has to wait
+    private static final int MAX_INBOUND = 1024;
+    private static final int MAX_MESSAGE = 16 * 1024 * 1024;
+
+    private static final int OP_CONTINUATION = 0x0;
+    private static final int OP_TEXT = 0x1;
+    private static final int OP_CLOSE = 0x8;
+    private static final int OP_PING = 0x9;
+    private static final int OP_PONG = 0xa;
+
+    private final Logger logger = LoggerFactory.getLogger(WebSocketTransport.class);
+    private final Config config;
+    private final CircuitBreaker breaker;
+    private final SecureRandom random = new SecureRandom();
+    private final BlockingQueue<JSONObject> inbound = new LinkedBlockingQueue<>(MAX_INBOUND);
+    // Sent but unacknowledged events, guarded by itself
+    private final ArrayDeque<Outbound> unacked = new ArrayDeque<>();
+    private volatile Session session;
+    private volatile String lastEventId;
+    private volatile boolean supported;
+    private volatile boolean closed;
+    private long nextSeq;
+
+    /**
+     * Constructor.
+     * @param config  Where to find Marco
+     * @param breaker Stops reconnection attempts while Marco is down
+     */
+    public WebSocketTransport(Config config, CircuitBreaker breaker) {
+        this.config = config;
+        this.breaker = breaker;
+        this.session = null;
+        this.lastEventId = null;
+        this.supported = true;
+        this.closed = false;
+        this.nextSeq = 1;
+    }
+
+    /**
+     * Whether Marco accepted (or may yet accept) a WebSocket connection.
+     * @return boolean False once Marco has refused the upgrade
+     */
+    public boolean isSupported() {
+        return supported;
+    }
+
+    /**
+     * Send events to Marco, which count as delivered once they are held
+     * for acknowledgement. While too many are already waiting on Marco the
+     * rest are left undelivered, for the outbox. Any still held when the
+     * transport is closed are handed back by takeUnacked().
+     */
+    @Override
+    public int deliver(List<MCEvent> events) {
+        Session session = connect();
+        if (session == null)
+            return 0;
+
+        synchronized (unacked) {
+            for (int i = 0; i < events.size(); ++i) {
+                // Marco has stalled without closing the connection, leave
+                // the rest undelivered rather than hold ever more
+                if (unacked.size() >= MAX_UNACKED) {
+                    logger.warn("Too many events unacknowledged by Marco, holding back {}", events.size() - i);
+                    return i;
+                }
+
+                MCEvent event = events.get(i);
+                long seq = nextSeq++;
+                String text = event.toJSON()
+                        .put("type", event.getType())
+                        .put("seq", seq)
+                        .toString();
+                unacked.addLast(new Outbound(seq, event, text));
+
+                // If this fails the event is sent again on reconnect
+                if (session.isOpen())
+                    session.send(OP_TEXT, text.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return events.size();
+    }
+
+    /**
+     * Handle the events Marco has pushed, waiting for some to arrive if there
+     * aren't any yet. Events are always handled on the calling thread.
+     */
+    @Override
+    public boolean receive(int wait, Consumer<JSONObject> handler) {
+        Session session = connect();
+        if (session == null)
+            return false;
+
+        if (System.currentTimeMillis() - session.lastPing > PING_INTERVAL) {
+            session.lastPing = System.currentTimeMillis();
+            session.send(OP_PING, new byte[0]);
+        }
+
+        try {
+            long deadline = System.currentTimeMillis() + wait;
+            JSONObject event = inbound.poll();
+            // Wait in slices so a dropped connection is noticed promptly
+            while (event == null && session.isOpen()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                    break;
+                event = inbound.poll(Math.min(remaining, 1000), TimeUnit.MILLISECONDS);
+            }
+            while (event != null) {
+                handler.accept(event);
+                event = inbound.poll();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return session.isOpen();
+    }
+
+    /**
+     * Marco pushes events as they happen, so receive() can always be called
+     * again straight away.
+     */
+    @Override
+    public boolean isLongPolling() {
+        return true;
+    }
+
+    /**
+     * Close the connection, first giving Marco a moment to acknowledge the
+     * events it has been sent.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        Session session = this.session;
+        if (session != null) {
+            long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+            synchronized (unacked) {
+                try {
+                    // Waiting in slices notices the connection dropping
+                    long remaining;
+                    while (!unacked.isEmpty() && session.isOpen()
+                            && (remaining = deadline - System.currentTimeMillis()) > 0)
+                        unacked.wait(Math.min(remaining, 100));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            session.send(OP_CLOSE, new byte[] { 0x03, (byte) 0xe8 }); // 1000 normal closure
+            session.close();
+        }
+    }
+
+    /**
+     * Take back the events Marco hasn't acknowledged, so that they can be
+     * kept elsewhere once the transport is closed. Marco may have received
+     * some of them, so they may be delivered twice.
+     * @return List<MCEvent> The unacknowledged events, in order
+     */
+    public List<MCEvent> takeUnacked() {
+        List<MCEvent> events = new ArrayList<>();
+        synchronized (unacked) {
+            for (Outbound outbound : unacked)
+                events.add(outbound.event);
+            unacked.clear();
+        }
+        return events;
+    }
+
+    /**
+     * Get the open connection to Marco, opening one if necessary.
+     * @return Session The connection, or null if Marco couldn't be reached
+     */
+    private synchronized Session connect() {
+        Session session = this.session;
+        if (session != null && session.isOpen())
+            return session;
+        if (closed || !supported || !breaker.allowRequest())
+            return null;
+
+        try {
+            session = handshake();
+        } catch (ConnectException e) {
+            // The circuit breaker logs when Marco goes down
+            breaker.recordFailure();
+            logger.debug("Couldn't open websocket to Marco: {}", e.getMessage());
+            return null;
+        } catch (IOException e) {
+            logger.warn("Couldn't open websocket to Marco: {}", e.getMessage());
+            return null;
+        }
+        breaker.recordSuccess();
+        this.session = session;
+
+        // Resend whatever the last connection didn't get acknowledged
+        synchronized (unacked) {
+            for (Outbound outbound : unacked)
+                session.send(OP_TEXT, outbound.text.getBytes(StandardCharsets.UTF_8));
+        }
+
+        Thread reader = new Thread(session, "Polo websocket reader");
+        reader.setDaemon(true);
+        reader.start();
+        logger.info("Opened websocket to Marco");
+        return session;
+    }
+
+    private Session handshake() throws IOException {
+        byte[] nonce = new byte[16];
+        random.nextBytes(nonce);
+        String key = Base64.getEncoder().encodeToString(nonce);
+
+        String path = "/ws";
+        String resume = lastEventId;
+        if (resume != null)
+            path += "?resume=" + URLEncoder.encode(resume, "UTF-8");
+
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(config.address, config.port), CONNECT_TIMEOUT);
+            // Only the handshake has a deadline, afterwards the connection
+            // may be quiet for a long time
+            socket.setSoTimeout(CONNECT_TIMEOUT);
+
+            InputStream in = new BufferedInputStream(socket.getInputStream(), 8192);
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+
+            String request = "GET " + path + " HTTP/1.1\r\n"
+                    + "Host: " + config.address + ":" + config.port + "\r\n"
+                    + "Authorization: Bearer " + config.token + "\r\n"
+                    + "User-Agent: Marco Spigot Plugin\r\n"
+                    + "Upgrade: websocket\r\n"
+                    + "Connection: Upgrade\r\n"
+                    + "Sec-WebSocket-Key: " + key + "\r\n"
+                    + "Sec-WebSocket-Version: 13\r\n"
+                    + "\r\n";
+            out.write(request.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            String statusLine = HttpConnectionPool.readLine(in);
+            int status = HttpConnectionPool.parseStatus(statusLine);
+            Map<String, String> headers = new HashMap<>();
+            String line;
+            while (!(line = HttpConnectionPool.readLine(in)).isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0)
+                    headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                                line.substring(colon + 1).trim());
+            }
+
+            if (status != 101) {
+                // Anything but an auth or server error means there is no
+                // websocket endpoint to talk to
+                if (status != 401 && status != 403 && status < 500)
+                    supported = false;
+                throw new IOException("Upgrade refused: " + statusLine);
+            }
+            if (!accept(key).equals(headers.get("sec-websocket-accept")))
+                throw new IOException("Invalid Sec-WebSocket-Accept");
+
+            socket.setSoTimeout(0);
+            return new Session(socket, in, out);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private static String accept(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key + ACCEPT_GUID).getBytes(StandardCharsets.US_ASCII));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Handle a text message from Marco, waiting while too many events are
+     * yet to be handled.
+     * @param session The connection it came on
+     * @param text    The message
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void onMessage(Session session, String text) throws InterruptedException {
+        JSONObject message;
+        try {
+            message = new JSONObject(text);
+        } catch (JSONException e) {
+            logger.warn("Invalid message from Marco ignored: {}", e.getMessage());
+            return;
+        }
+
+        if ("ack".equals(message.optString("type"))) {
+            // Acknowledgements are cumulative
+            long seq = message.optLong("seq", 0);
+            synchronized (unacked) {
+                Iterator<Outbound> it = unacked.iterator();
+                while (it.hasNext() && it.next().seq <= seq)
+                    it.remove();
+                unacked.notifyAll();
+            }
+            return;
+        }
+
+        while (!inbound.offer(message, 1, TimeUnit.SECONDS)) {
+            // Resuming on the next connection picks it up again
+            if (!session.isOpen())
+                return;
+        }
+        Object id = message.opt("id");
+        if (id != null)
+            lastEventId = id.toString();
+    }
+
+    /**
+     * An event waiting for acknowledgement.
+     */
+    private static class Outbound {
+        final long seq;
+        final MCEvent event;
+        final String text;
+
+        Outbound(long seq, MCEvent event, String text) {
+            this.seq = seq;
+            this.event = event;
+            this.text = text;
+        }
+    }
+
+    /**
+     * An open WebSocket connection, which reads messages from Marco on its
+     * own thread.
+     */
+    private class Session implements Runnable {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final byte[] mask = new byte[4];
+        private volatile boolean open;
+        long lastPing;
+
+        Session(Socket socket, InputStream in, OutputStream out) {
+            this.socket = socket;
+            this.in = in;
+            this.out = out;
+            this.open = true;
+            this.lastPing = System.currentTimeMillis();
+        }
+
+        boolean isOpen() {
+            return open;
+        }
+
+        /**
+         * Send a single frame. Frames from a client must be masked.
+         */
+        synchronized void send(int opcode, byte[] payload) {
+            if (!open)
+                return;
+            try {
+                out.write(0x80 | opcode);
+                int len = payload.length;
+                if (len < 126) {
+                    out.write(0x80 | len);
+                } else if (len <= 0xffff) {
+                    out.write(0x80 | 126);
+                    out.write(len >>> 8);
+                    out.write(len);
+                } else {
+                    out.write(0x80 | 127);
+                    for (int shift = 56; shift >= 0; shift -= 8)
+                        out.write((int) ((long) len >>> shift));
+                }
+                random.nextBytes(mask);
+                out.write(mask);
+                byte[] masked = new byte[len];
+                for (int i = 0; i < len; ++i)
+                    masked[i] = (byte) (payload[i] ^ mask[i & 3]);
+                out.write(masked);
+                out.flush();
+            } catch (IOException e) {
+                logger.warn("Websocket to Marco failed: {}", e.getMessage());
+                close();
+            }
+        }
+
+        @Override
+        public void run() {
+            ByteArrayOutputStream message = new ByteArrayOutputStream();
+            try {
+                while (open) {
+                    int b0 = in.read();
+                    int b1 = in.read();
+                    if (b0 < 0 || b1 < 0)
+                        throw new EOFException("Connection closed by Marco");
+                    boolean fin = (b0 & 0x80) != 0;
+                    int opcode = b0 & 0x0f;
+                    long len = b1 & 0x7f;
+                    if (len == 126)
+                        len = (readByte() << 8) | readByte();
+                    else if (len == 127) {
+                        len = 0;
+                        for (int i = 0; i < 8; ++i)
+                            len = (len << 8) | readByte();
+                        // The most significant bit must be 0 (RFC 6455 5.2)
+                        if (len < 0)
+                            throw new IOException("Invalid frame length from Marco");
+                    }
+                    if (len > MAX_MESSAGE || message.size() + len > MAX_MESSAGE)
+                        throw new IOException("Message from Marco too large");
+
+                    byte[] frameMask = null;
+                    if ((b1 & 0x80) != 0) {
+                        frameMask = new byte[4];
+                        readFully(frameMask);
+                    }
+                    byte[] payload = new byte[(int) len];
+                    readFully(payload);
+                    if (frameMask != null)
+                        for (int i = 0; i < payload.length; ++i)
+                            payload[i] ^= frameMask[i & 3];
+
+                    switch (opcode) {
+                    case OP_TEXT:
+                    case OP_CONTINUATION:
+                        message.write(payload, 0, payload.length);
+                        if (fin) {
+                            onMessage(this, new String(message.toByteArray(), StandardCharsets.UTF_8));
+                            message.reset();
+                        }
+                        break;
+                    case OP_PING:
+                        send(OP_PONG, payload);
+                        break;
+                    case OP_CLOSE:
+                        send(OP_CLOSE, payload);
+                        close();
+                        break;
+                    default:
+                        // Pongs and binary frames need no response
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                if (open && !closed)
+                    logger.warn("Websocket to Marco closed: {}", e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                close();
+            }
+        }
+
+        private int readByte() throws IOException {
+            int b = in.read();
+            if (b < 0)
+                throw new EOFException("Connection closed by Marco");
+            return b;
+        }
+
+        private void readFully(byte[] buf) throws IOException {
+            int off = 0;
+            while (off < buf.length) {
+                int n = in.read(buf, off, buf.length - off);
+                if (n < 0)
+                    throw new EOFException("Connection closed by Marco");
+                off += n;
+            }
+        }
+
+        void close() {
+            open = false;
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
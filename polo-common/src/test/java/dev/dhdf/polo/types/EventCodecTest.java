@@ -0,0 +1,84 @@
+package dev.dhdf.polo.types;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+
+
+public class EventCodecTest {
+    private static final String[] TEXTS = {
+            "hello",
+            "",
+            "say \"hi\"",
+            "C:\\Users\\steve",
+            "</script> and a/b",
+            "tab\there\nnewline\rreturn\bback\fform",
+            "\u0000\u0001\u001f\u007f",
+            "\u0080\u009f\u00a0\u00e9 \u2000\u2028\u20ac\u2100",
+            "\u4f60\u597d \uff01",
+            "\ud83d\ude00 \ud801\udc37",
+            "lone \ud83d and \ude00 surrogates",
+    };
+
+    @Test
+    public void eventsMatchJSONObject() {
+        for (String text : TEXTS) {
+            PoloPlayer player = player(text, text);
+            for (MCEvent event : events(player, text)) {
+                // Twice, the second time with the player's JSON reused
+                assertMatches(event);
+                assertMatches(event);
+            }
+        }
+    }
+
+    @Test
+    public void nullDisplayNameAndTextureAreLeftOut() {
+        PoloPlayer player = new PoloPlayer("Steve", UUID.randomUUID(), null, null);
+        for (MCEvent event : events(player, "bye"))
+            assertMatches(event);
+        assertMatches(new MCKick(player, null));
+        assertMatches(new MCDeath(player, null));
+    }
+
+    @Test
+    public void batchMatchesJSONObject() {
+        List<MCEvent> events = new ArrayList<>();
+        for (String text : TEXTS)
+            events.addAll(events(player(text, null), text));
+
+        JSONArray array = new JSONArray();
+        for (MCEvent event : events)
+            array.put(event.toJSON().put("type", event.getType()));
+        String expected = new JSONObject().put("events", array).toString();
+
+        assertArrayEquals(expected.getBytes(StandardCharsets.UTF_8), new EventCodec().encodeBatch(events));
+    }
+
+    private static PoloPlayer player(String displayName, String texture) {
+        return new PoloPlayer("Steve", UUID.randomUUID(), displayName, texture);
+    }
+
+    private static List<MCEvent> events(PoloPlayer player, String text) {
+        return Arrays.asList(
+                new MCMessage(player, text),
+                new MCJoin(player),
+                new MCQuit(player),
+                new MCKick(player, text),
+                new MCDeath(player, text)
+        );
+    }
+
+    private static void assertMatches(MCEvent event) {
+        byte[] expected = event.toJSON().toString().getBytes(StandardCharsets.UTF_8);
+        assertArrayEquals(event.getType(), expected, new EventCodec().encode(event));
+    }
+}
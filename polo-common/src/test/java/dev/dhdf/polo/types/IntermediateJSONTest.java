@@ -0,0 +1,101 @@
+package dev.dhdf.polo.types;
+
+import dev.dhdf.polo.util.UuidCodec;
+import net.kyori.adventure.text.serializer.plain.PlainComponentSerializer;
+import org.json.JSONArray;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Messages rendered as they were when these were written, legacy formatting
+ * codes shown with & rather than the section sign. Indentation depends on
+ * glyph-widths.txt.
+ */
+public class IntermediateJSONTest {
+    @Test
+    public void styles() {
+        IntermediateJSON message = render("[\"plain \","
+                + " {\"type\": \"style\", \"bold\": true, \"color\": 16733525, \"content\": \"bold red\"}, \" \","
+                + " {\"type\": \"style\", \"italic\": true, \"content\": [\"it \","
+                + "  {\"type\": \"style\", \"strike\": true, \"content\": \"struck\"}]}]");
+        assertEquals("plain &c&lbold red&r &oit &mstruck", legacy(message));
+        assertEquals("&4plain &c&lbold red&r&4 &oit &r&4&m&ostruck&r", legacyHighlight(message));
+    }
+
+    @Test
+    public void bullets() {
+        IntermediateJSON message = render("[\"list:\\n\","
+                + " {\"type\": \"block\", \"block\": \"bullet\", \"content\": [\"one\\ntwo\"]}, \"\\n\","
+                + " {\"type\": \"block\", \"block\": \"bullet\", \"content\": [\"three\\n\","
+                + "  {\"type\": \"block\", \"block\": \"bullet\", \"n\": 4, \"content\": \"four\\nfive\"}]}]");
+        assertEquals("list:\n \u25e6 one\n   two\n \u25e6 three\n   iv. four\n       five", plain(message));
+        assertEquals("list:\n&7 \u25e6 &rone\n   two\n&7 \u25e6 &rthree\n   &7iv. &rfour\n       five",
+                     legacy(message));
+    }
+
+    @Test
+    public void boldBulletsIndentWithBoldSpaces() {
+        // "1. " is 15 pixels wide in bold, as are three bold spaces
+        IntermediateJSON message = render("[{\"type\": \"style\", \"heading\": 1, \"content\": ["
+                + " {\"type\": \"block\", \"block\": \"bullet\", \"n\": 1, \"content\": \"a\\nb\"}]}]");
+        assertEquals("1. a\n   b", plain(message));
+        assertEquals("&7&l1. &r&la\n   b", legacy(message));
+    }
+
+    @Test
+    public void quoteAndRule() {
+        IntermediateJSON message = render("[{\"type\": \"block\", \"block\": \"quote\", \"content\": \"quoted\\nlines\"},"
+                + " \"\\n\", {\"type\": \"horizontalRule\"}]");
+        // The rule fills the 320 pixel chat width
+        String rule = String.join("", Collections.nCopies(53, "-"));
+        assertEquals("| quoted\n| lines\n" + rule, plain(message));
+        assertEquals("&7| &rquoted\n&7| &rlines\n&7&m" + rule + "&r", legacy(message));
+    }
+
+    @Test
+    public void linksAndImages() {
+        IntermediateJSON message = render("[\"see \","
+                + " {\"type\": \"link\", \"href\": \"https://example.org\", \"content\": \"this\"}, \" \","
+                + " {\"type\": \"img\", \"src\": \"https://example.org/a.png\", \"alt\": \"cat\"}]");
+        assertEquals("see &nthis&r &7&ncat&r", legacy(message));
+    }
+
+    @Test
+    public void mentions() {
+        UUID uuid = UUID.randomUUID();
+        IntermediateJSON message = render("[{\"type\": \"mention\", \"bridge\": \"minecraft\","
+                + " \"player\": {\"uuid\": \"" + UuidCodec.toString(uuid) + "\"},"
+                + " \"user\": {\"displayName\": \"Steve\", \"mxid\": \"@_mc_steve:example.org\"},"
+                + " \"content\": \"Steve\"}, \": hi\"]");
+        assertEquals("Steve: hi", plain(message));
+        assertEquals(Collections.singleton(uuid), message.getMentions());
+        assertFalse(message.getRoomMention());
+
+        message = render("[{\"type\": \"mention\", \"room\": true, \"content\": \"@room\"}]");
+        assertTrue(message.getMentions().isEmpty());
+        assertTrue(message.getRoomMention());
+    }
+
+    private static IntermediateJSON render(String json) {
+        return new IntermediateJSON(new JSONArray(json));
+    }
+
+    private static String plain(IntermediateJSON message) {
+        return PlainComponentSerializer.plain().serialize(message.getComponent());
+    }
+
+    private static String legacy(IntermediateJSON message) {
+        return message.getLegacy().replace('\u00a7', '&');
+    }
+
+    private static String legacyHighlight(IntermediateJSON message) {
+        return message.getLegacyHighlight().replace('\u00a7', '&');
+    }
+}
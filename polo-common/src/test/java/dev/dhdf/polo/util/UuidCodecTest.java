@@ -0,0 +1,60 @@
+package dev.dhdf.polo.util;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+
+public class UuidCodecTest {
+    @Test
+    public void toStringMatchesJdk() {
+        for (int i = 0; i < 10000; ++i) {
+            UUID uuid = UUID.randomUUID();
+            assertEquals(uuid.toString().replace("-", ""), UuidCodec.toString(uuid));
+        }
+    }
+
+    @Test
+    public void fromStringMatchesJdk() {
+        for (int i = 0; i < 10000; ++i) {
+            UUID uuid = UUID.randomUUID();
+            assertEquals(uuid, UuidCodec.fromString(uuid.toString()));
+            assertEquals(uuid, UuidCodec.fromString(uuid.toString().replace("-", "")));
+            assertEquals(uuid, UuidCodec.fromString(uuid.toString().replace("-", "").toUpperCase()));
+        }
+    }
+
+    @Test
+    public void toStringAfterFromString() {
+        UUID uuid = UUID.randomUUID();
+        String dashless = uuid.toString().replace("-", "");
+
+        UUID read = UuidCodec.fromString(dashless);
+        assertEquals(dashless, UuidCodec.toString(uuid));
+        assertEquals(dashless, UuidCodec.toString(read));
+        // Still the same instance once the string is cached
+        assertSame(read, UuidCodec.fromString(dashless));
+    }
+
+    @Test
+    public void fromStringAfterToString() {
+        UUID uuid = UUID.randomUUID();
+        String dashless = UuidCodec.toString(uuid);
+
+        assertEquals(uuid, UuidCodec.fromString(dashless));
+        assertSame(dashless, UuidCodec.toString(uuid));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidDigits() {
+        UuidCodec.fromString("069a79f444e94726a5befca90e38aagg");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsWrongLength() {
+        UuidCodec.fromString("069a79f444e94726a5befca90e38aaf");
+    }
+}
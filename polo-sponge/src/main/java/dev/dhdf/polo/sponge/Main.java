@@ -3,6 +3,8 @@ package dev.dhdf.polo.sponge;
 import com.google.common.reflect.TypeToken;
 import com.google.inject.Inject;
 import dev.dhdf.polo.PoloPlugin;
+import dev.dhdf.polo.metrics.Metrics;
+import dev.dhdf.polo.types.PlayerRegistry;
 import dev.dhdf.polo.types.PoloPlayer;
 import dev.dhdf.polo.util.Sync;
 import dev.dhdf.polo.webclient.WebClient;
@@ -13,19 +15,28 @@ import ninja.leaping.configurate.objectmapping.Setting;
 import ninja.leaping.configurate.objectmapping.serialize.ConfigSerializable;
 import org.slf4j.Logger;
 import org.spongepowered.api.Sponge;
+import org.spongepowered.api.command.CommandResult;
+import org.spongepowered.api.command.spec.CommandSpec;
+import org.spongepowered.api.config.ConfigDir;
 import org.spongepowered.api.config.DefaultConfig;
 import org.spongepowered.api.entity.living.player.Player;
 import org.spongepowered.api.event.Listener;
 import org.spongepowered.api.event.Order;
 import org.spongepowered.api.event.filter.cause.First;
 import org.spongepowered.api.event.game.state.GameStartedServerEvent;
+import org.spongepowered.api.event.game.state.GameStoppingServerEvent;
 import org.spongepowered.api.event.message.MessageChannelEvent;
+import org.spongepowered.api.event.network.ClientConnectionEvent;
 import org.spongepowered.api.plugin.Plugin;
+import org.spongepowered.api.profile.property.ProfileProperty;
 import org.spongepowered.api.scheduler.Task;
 import org.spongepowered.api.text.Text;
 import org.spongepowered.api.text.channel.MessageChannel;
+import org.spongepowered.api.text.serializer.TextSerializers;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.concurrent.TimeUnit;
 import java.util.UUID;
 
@@ -39,27 +50,66 @@ public class Main implements PoloPlugin {
     @DefaultConfig(sharedRoot = true)
     private ConfigurationLoader<CommentedConfigurationNode> configManager;
 
+    @Inject
+    @ConfigDir(sharedRoot = false)
+    private Path dataFolder;
+
     @Inject
     private Logger logger;
 
+    private final PlayerRegistry players = new PlayerRegistry();
     private WebClient client;
+    private Sync sync;
 
     @Listener
     public void onServerStart(GameStartedServerEvent evt) {
         Config cfg = loadConfig();
 
-        client = new WebClient(this, cfg.getConfig());
+        dev.dhdf.polo.webclient.Config webConfig = cfg.getConfig();
+        client = new WebClient(this, webConfig);
+        registerCommands();
 
         if (!client.vibeCheck()) {
             logger.error("Couldn't properly connect to Marco, is the address and port set properly?");
             return;
         }
 
-        Task.builder()
-                .async()
-                .execute(new Sync(client))
-                .interval(5, TimeUnit.SECONDS)
-                .submit(this);
+        sync = new Sync(this, client, webConfig);
+        sync.start();
+    }
+
+    private void registerCommands() {
+        CommandSpec stats = CommandSpec.builder()
+                .description(Text.of("Show what the bridge to Matrix is doing"))
+                .permission("polo.stats")
+                .executor((src, args) -> {
+                    for (String line : client.getStats())
+                        src.sendMessage(Text.of(line));
+                    return CommandResult.success();
+                })
+                .build();
+        CommandSpec polo = CommandSpec.builder()
+                .child(stats, "stats")
+                .build();
+        Sponge.getCommandManager().register(this, polo, "polo");
+    }
+
+    @Listener
+    public void onServerStopping(GameStoppingServerEvent evt) {
+        if (sync != null)
+            sync.stop();
+        if (client != null)
+            client.close();
+    }
+
+    @Listener(order = Order.POST)
+    public void onJoin(ClientConnectionEvent.Join evt) {
+        updatePlayer(evt.getTargetEntity());
+    }
+
+    @Listener(order = Order.POST)
+    public void onQuit(ClientConnectionEvent.Disconnect evt) {
+        players.remove(evt.getTargetEntity().getUniqueId());
     }
 
     @Listener(order = Order.POST)
@@ -75,11 +125,28 @@ public class Main implements PoloPlugin {
             return;
         }
 
-        PoloPlayer player = new PoloPlayer(source.getName(), source.getUniqueId(), null, null);
+        PoloPlayer player = players.get(source.getUniqueId());
+        if (player == null)
+            player = updatePlayer(source);
         String message = evt.getFormatter().getBody().toText().toPlain();
         this.client.postChat(player, message);
     }
 
+    /**
+     * Take a new snapshot of a player, with their display name and texture.
+     */
+    private PoloPlayer updatePlayer(Player player) {
+        // Formatting codes are stripped by the registry
+        String displayName = TextSerializers.LEGACY_FORMATTING_CODE.serialize(
+                player.getDisplayNameData().displayName().get());
+        String texture = null;
+        for (ProfileProperty property : player.getProfile().getPropertyMap().get(ProfileProperty.TEXTURES)) {
+            texture = property.getValue();
+            break;
+        }
+        return players.update(player.getUniqueId(), player.getName(), displayName, texture);
+    }
+
     private Config loadConfig() {
         Config cfg = null;
         try {
@@ -102,7 +169,9 @@ public class Main implements PoloPlugin {
 
     @Override
     public void broadcastMessage(String message, Object json) {
+        long start = System.nanoTime();
         Sponge.getServer().getBroadcastChannel().send(Text.of(message));
+        Metrics.get().histogram("polo_broadcast_seconds").recordSince(start);
     }
 
     @Override
@@ -125,6 +194,20 @@ public class Main implements PoloPlugin {
                 .submit(this);
     }
 
+    @Override
+    public void executeAsyncLater(Runnable task, long delay) {
+        Task.builder()
+                .async()
+                .delay(delay, TimeUnit.MILLISECONDS)
+                .execute(task)
+                .submit(this);
+    }
+
+    @Override
+    public File getDataFolder() {
+        return dataFolder.toFile();
+    }
+
     @ConfigSerializable
     public static final class Config {
         public static final TypeToken<Config> TYPE_TOKEN = TypeToken.of(Config.class);
@@ -137,6 +220,39 @@ public class Main implements PoloPlugin {
         @Setting
         private String token;
 
+        // The rest have the same defaults as config.yml on Bukkit, where
+        // they are explained in full
+        @Setting(value = "batch-size", comment = "Most events sent to Marco in one request, 1 to send them singly")
+        private int batchSize = 50;
+        @Setting(value = "batch-linger", comment = "How long the first event of a batch waits for more (ms)")
+        private int batchLinger = 20;
+        @Setting(comment = "How events are exchanged with Marco: \"http\" or \"websocket\"")
+        private String transport = "http";
+        @Setting(value = "queue-capacity", comment = "Most events waiting to be sent to Marco")
+        private int queueCapacity = 1024;
+        @Setting(value = "sender-threads", comment = "Threads sending events, more than 1 may reorder them")
+        private int senderThreads = 1;
+        @Setting(value = "queue-overflow",
+                comment = "What to do when the queue is full: \"drop-chat\", \"drop-oldest\" or \"block\"")
+        private String overflowPolicy = "drop-chat";
+        @Setting(value = "outbox-size", comment = "Size of the outbox for events Marco missed (KiB), 0 to disable it")
+        private int outboxSize = 4096;
+        @Setting(value = "outbox-retention", comment = "How long events are kept in the outbox (minutes)")
+        private int outboxRetention = 60;
+        @Setting(value = "breaker-threshold", comment = "Failed requests in a row before Marco is treated as down")
+        private int breakerThreshold = 3;
+        @Setting(value = "breaker-max-wait", comment = "Longest wait before checking Marco again (s)")
+        private int breakerMaxWait = 60;
+        @Setting(value = "sync-min-interval", comment = "How often Marco is polled while the room is active (ms)")
+        private int syncMinInterval = 250;
+        @Setting(value = "sync-max-interval", comment = "How often Marco is polled while the room is quiet (ms)")
+        private int syncMaxInterval = 5000;
+        @Setting(value = "compress-threshold", comment = "Smallest request to gzip (bytes), 0 to never compress")
+        private int compressThreshold = 1024;
+        @Setting(value = "metrics-interval",
+                comment = "How often metrics are written to metrics.prom (s), 0 not to write them")
+        private int metricsInterval = 0;
+
         // Needed for object mapping
         private Config() {}
 
@@ -147,7 +263,30 @@ public class Main implements PoloPlugin {
         }
 
         public dev.dhdf.polo.webclient.Config getConfig() {
-            return new dev.dhdf.polo.webclient.Config(address, port, token, false, false, false, false);
+            // Membership, deaths, kicks and bans aren't relayed on Sponge yet
+            return new dev.dhdf.polo.webclient.Config(
+                    address,
+                    port,
+                    token,
+                    false,
+                    false,
+                    false,
+                    false,
+                    batchSize,
+                    batchLinger,
+                    transport,
+                    queueCapacity,
+                    senderThreads,
+                    overflowPolicy,
+                    outboxSize,
+                    outboxRetention,
+                    breakerThreshold,
+                    breakerMaxWait,
+                    syncMinInterval,
+                    syncMaxInterval,
+                    compressThreshold,
+                    metricsInterval
+            );
         }
     }
 }